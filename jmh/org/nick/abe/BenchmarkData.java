@@ -0,0 +1,131 @@
+package org.nick.abe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+// Synthetic payloads for the benchmarks. Everything is generated from a fixed
+// seed so that runs on different releases see the same bytes.
+class BenchmarkData {
+
+    static final String PASSWORD = "benchmark";
+
+    private static final long SEED = 0x5eedL;
+    private static final String[] WORDS = { "com", "android", "backup", "shared_prefs",
+            "databases", "files", "<map>", "</map>", "<string name=", "value", "true",
+            "false", "0", "1", "\n", " " };
+
+    private BenchmarkData() {
+    }
+
+    // entropy is one of "zero" (all zero bytes), "text" (XML-like text that
+    // deflates well) or "random" (incompressible)
+    static byte[] payload(String entropy, int size) {
+        byte[] data = new byte[size];
+        Random random = new Random(SEED);
+        switch (entropy) {
+        case "zero":
+            break;
+        case "text":
+            int pos = 0;
+            while (pos < size) {
+                byte[] word = WORDS[random.nextInt(WORDS.length)]
+                        .getBytes(StandardCharsets.US_ASCII);
+                int n = Math.min(word.length, size - pos);
+                System.arraycopy(word, 0, data, pos, n);
+                pos += n;
+            }
+            break;
+        case "random":
+            random.nextBytes(data);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown entropy: " + entropy);
+        }
+        return data;
+    }
+
+    // Writes a tar laid out like a backup, with files of at most 256KB
+    // holding payload(entropy, size) in total.
+    static void writeTar(File tar, String entropy, int size) throws IOException {
+        byte[] data = payload(entropy, size);
+        try (OutputStream out = new FileOutputStream(tar)) {
+            writeEntry(out, "apps/org.nick.bench/_manifest", new byte[64]);
+            int fileSize = 256 * 1024;
+            for (int i = 0, off = 0; off < data.length; i++, off += fileSize) {
+                int n = Math.min(fileSize, data.length - off);
+                byte[] file = new byte[n];
+                System.arraycopy(data, off, file, 0, n);
+                writeEntry(out, "apps/org.nick.bench/f/file" + i, file);
+            }
+            // end of archive
+            out.write(new byte[1024]);
+        }
+    }
+
+    private static void writeEntry(OutputStream out, String name, byte[] data)
+            throws IOException {
+        byte[] header = new byte[512];
+        putString(header, 0, 100, name);
+        putOctal(header, 100, 8, 0600);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, data.length);
+        putOctal(header, 136, 12, 0);
+        header[156] = '0';
+        putString(header, 257, 6, "ustar");
+        putString(header, 263, 2, "00");
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        int checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(header, 148, 7, checksum);
+        out.write(header);
+        out.write(data);
+        int padding = (512 - data.length % 512) % 512;
+        out.write(new byte[padding]);
+    }
+
+    private static void putString(byte[] header, int off, int len, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, off, Math.min(len, bytes.length));
+    }
+
+    // zero padded octal followed by a NUL
+    private static void putOctal(byte[] header, int off, int len, long value) {
+        String octal = Long.toOctalString(value);
+        while (octal.length() < len - 1) {
+            octal = "0" + octal;
+        }
+        putString(header, off, len - 1, octal);
+    }
+
+    // the progress messages of extractAsTar() and packTar() are not what is
+    // being measured
+    static PrintStream silenceStderr() {
+        PrintStream stderr = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return stderr;
+    }
+
+    static void delete(File file) {
+        if (file != null && !file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+}
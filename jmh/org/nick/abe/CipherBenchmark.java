@@ -0,0 +1,112 @@
+package org.nick.abe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The body cipher of each JCE provider, through CipherInputStream and
+// CipherOutputStream or through the large Cipher.update() calls of
+// BulkCipherInputStream and BulkCipherOutputStream.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CipherBenchmark {
+
+    @Param({ "SunJCE", "BC" })
+    public String provider;
+
+    @Param({ "jce", "bulk" })
+    public String stream;
+
+    @Param({ "4194304" })
+    public int payloadSize;
+
+    private Provider jceProvider;
+    private byte[] plain;
+    private byte[] encrypted;
+    private SecretKeySpec key;
+    private IvParameterSpec iv;
+    private byte[] buf;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        for (Provider p : Ciphers.candidates()) {
+            if (p.getName().equals(provider)) {
+                jceProvider = p;
+            }
+        }
+        if (jceProvider == null) {
+            throw new IllegalStateException("No provider " + provider);
+        }
+        plain = BenchmarkData.payload("random", payloadSize);
+        byte[] keyBytes = BenchmarkData.payload("random", 48);
+        key = new SecretKeySpec(keyBytes, 0, 32, "AES");
+        iv = new IvParameterSpec(keyBytes, 32, 16);
+        encrypted = cipher(Cipher.ENCRYPT_MODE).doFinal(plain);
+        buf = new byte[64 * 1024];
+    }
+
+    @Benchmark
+    public long decrypt() throws IOException, GeneralSecurityException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(encrypted);
+        Cipher c = cipher(Cipher.DECRYPT_MODE);
+        InputStream in = "bulk".equals(stream) ? new BulkCipherInputStream(bytes, c)
+                : new CipherInputStream(bytes, c);
+        long total = 0;
+        try {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                total += n;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int encrypt() throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length + 16);
+        Cipher c = cipher(Cipher.ENCRYPT_MODE);
+        // written in the 8KB pieces DeflaterOutputStream hands on
+        try (OutputStream out = "bulk".equals(stream) ? new BulkCipherOutputStream(bytes, c)
+                : new CipherOutputStream(bytes, c)) {
+            for (int off = 0; off < plain.length; off += 8192) {
+                out.write(plain, off, Math.min(8192, plain.length - off));
+            }
+        }
+        return bytes.size();
+    }
+
+    private Cipher cipher(int mode) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding", jceProvider);
+        c.init(mode, key, iv);
+        return c;
+    }
+}
@@ -0,0 +1,91 @@
+package org.nick.abe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// extractAsTar() and packTar() over files, the way the command line uses
+// them. Both include the key derivation of encrypted backups, see
+// KeyDerivationBenchmark for its share.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    // plain: neither compressed nor encrypted, both: compressed and encrypted
+    @Param({ "plain", "compressed", "encrypted", "both" })
+    public String mode;
+
+    @Param({ "text", "random" })
+    public String entropy;
+
+    @Param({ "16777216" })
+    public int payloadSize;
+
+    private File dir;
+    private File tar;
+    private File backup;
+    private File out;
+    private PrintStream stderr;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stderr = BenchmarkData.silenceStderr();
+        dir = File.createTempFile("abe-bench", "");
+        dir.delete();
+        dir.mkdirs();
+        tar = new File(dir, "backup.tar");
+        backup = new File(dir, "backup.ab");
+        out = new File(dir, "out");
+        BenchmarkData.writeTar(tar, entropy, payloadSize);
+        pack(backup);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(out);
+        BenchmarkData.delete(backup);
+        BenchmarkData.delete(tar);
+        BenchmarkData.delete(dir);
+        System.setErr(stderr);
+    }
+
+    @Benchmark
+    public void extractAsTar() {
+        AndroidBackup.extractAsTar(backup.getPath(), out.getPath(), password());
+    }
+
+    @Benchmark
+    public void packTar() {
+        pack(out);
+    }
+
+    private void pack(File target) {
+        boolean compressed = "compressed".equals(mode) || "both".equals(mode);
+        AndroidBackup.packTar(tar.getPath(), target.getPath(), password(), true,
+                new PackOptions().setCompressed(compressed));
+    }
+
+    private String password() {
+        return "encrypted".equals(mode) || "both".equals(mode) ? BenchmarkData.PASSWORD
+                : null;
+    }
+}
@@ -0,0 +1,64 @@
+package org.nick.abe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing the header of an encrypted backup, followed by some body bytes the
+// parser reads ahead into its buffer.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+    @Param({ "64", "1024", "8192", "65536" })
+    public int bufferSize;
+
+    // of the salts, IV and key blob in the header and of the body
+    @Param({ "zero", "random" })
+    public String entropy;
+
+    private byte[] backup;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] random = BenchmarkData.payload(entropy, 64 + 64 + 16 + 96 + 64 * 1024);
+        StringBuilder header = new StringBuilder();
+        header.append(AndroidBackup.BACKUP_FILE_HEADER_MAGIC);
+        header.append(AndroidBackup.BACKUP_FILE_V5).append("\n1\n");
+        header.append(AndroidBackup.ENCRYPTION_ALGORITHM_NAME).append('\n');
+        header.append(AndroidBackup.toHex(Arrays.copyOfRange(random, 0, 64))).append('\n');
+        header.append(AndroidBackup.toHex(Arrays.copyOfRange(random, 64, 128))).append('\n');
+        header.append(10000).append('\n');
+        header.append(AndroidBackup.toHex(Arrays.copyOfRange(random, 128, 144))).append('\n');
+        header.append(AndroidBackup.toHex(Arrays.copyOfRange(random, 144, 240))).append('\n');
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+        out.write(random, 240, random.length - 240);
+        backup = out.toByteArray();
+    }
+
+    @Benchmark
+    public BackupHeader parse() throws IOException {
+        return new HeaderParser(new ByteArrayInputStream(backup), bufferSize).parse();
+    }
+}
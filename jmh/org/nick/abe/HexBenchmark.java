@@ -0,0 +1,60 @@
+package org.nick.abe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Hex coding of the header fields. The sizes go from a salt to well beyond
+// any master key blob, to show per call overhead as well as throughput.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexBenchmark {
+
+    @Param({ "64", "1024", "65536" })
+    public int size;
+
+    @Param({ "zero", "random" })
+    public String entropy;
+
+    private byte[] bytes;
+    private String hex;
+    private byte[] hexBytes;
+
+    @Setup
+    public void setUp() {
+        bytes = BenchmarkData.payload(entropy, size);
+        hex = AndroidBackup.toHex(bytes);
+        hexBytes = hex.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public String toHex() {
+        return AndroidBackup.toHex(bytes);
+    }
+
+    @Benchmark
+    public byte[] hexToByteArray() {
+        return AndroidBackup.hexToByteArray(hex);
+    }
+
+    // the variant HeaderParser uses on its buffer
+    @Benchmark
+    public byte[] hexToByteArrayFromBytes() {
+        return AndroidBackup.hexToByteArray(hexBytes, 0, hexBytes.length);
+    }
+}
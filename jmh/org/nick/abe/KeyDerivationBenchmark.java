@@ -0,0 +1,62 @@
+package org.nick.abe;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The PBKDF2 runs of opening an encrypted backup: one for the user key and,
+// once the master key is decrypted, one for its checksum.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyDerivationBenchmark {
+
+    // the default of Android's BackupManagerService
+    @Param({ "10000" })
+    public int rounds;
+
+    @Param({ "false", "true" })
+    public boolean useUtf8;
+
+    // the master key is random, so the checksum sees high bytes that the
+    // two encodings treat differently; the password is ASCII
+    private char[] password;
+    private byte[] salt;
+    private byte[] masterKey;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0x5eedL);
+        password = BenchmarkData.PASSWORD.toCharArray();
+        salt = new byte[64];
+        random.nextBytes(salt);
+        masterKey = new byte[32];
+        random.nextBytes(masterKey);
+    }
+
+    @Benchmark
+    public SecretKey androidPBKDF2() {
+        return AndroidBackup.androidPBKDF2(password, salt, rounds, useUtf8);
+    }
+
+    @Benchmark
+    public byte[] makeKeyChecksum() {
+        return AndroidBackup.makeKeyChecksum(masterKey, salt, rounds, useUtf8);
+    }
+}
@@ -0,0 +1,126 @@
+package org.nick.abe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The stream stack extractAsTar() and packTar() build around the body, in
+// memory and with the buffer size as a parameter, to separate the codecs
+// from file I/O.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({ "512", "8192", "65536", "1048576" })
+    public int bufferSize;
+
+    @Param({ "text", "random" })
+    public String entropy;
+
+    @Param({ "4194304" })
+    public int payloadSize;
+
+    private byte[] tar;
+    private byte[] deflated;
+    private byte[] encrypted;
+    private byte[] encryptedDeflated;
+    private SecretKeySpec key;
+    private IvParameterSpec iv;
+    private byte[] buf;
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException {
+        tar = BenchmarkData.payload(entropy, payloadSize);
+        byte[] keyBytes = BenchmarkData.payload("random", 48);
+        key = new SecretKeySpec(keyBytes, 0, 32, "AES");
+        iv = new IvParameterSpec(keyBytes, 32, 16);
+        deflated = deflate(tar, 64 * 1024);
+        encrypted = cipher(Cipher.ENCRYPT_MODE).doFinal(tar);
+        encryptedDeflated = cipher(Cipher.ENCRYPT_MODE).doFinal(deflated);
+        buf = new byte[bufferSize];
+    }
+
+    @Benchmark
+    public long decrypt() throws IOException, GeneralSecurityException {
+        return drain(new BulkCipherInputStream(new ByteArrayInputStream(encrypted),
+                cipher(Cipher.DECRYPT_MODE)));
+    }
+
+    @Benchmark
+    public long inflate() throws IOException {
+        return drain(new InflaterInputStream(new ByteArrayInputStream(deflated),
+                new Inflater(), bufferSize));
+    }
+
+    @Benchmark
+    public long decryptAndInflate() throws IOException, GeneralSecurityException {
+        InputStream in = new BulkCipherInputStream(
+                new ByteArrayInputStream(encryptedDeflated), cipher(Cipher.DECRYPT_MODE));
+        return drain(new InflaterInputStream(in, new Inflater(), bufferSize));
+    }
+
+    @Benchmark
+    public int deflate() throws IOException {
+        return deflate(tar, bufferSize).length;
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        try {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                total += n;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    private static byte[] deflate(byte[] data, int bufferSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (OutputStream out = new DeflaterOutputStream(bytes, deflater, bufferSize)) {
+            for (int off = 0; off < data.length; off += bufferSize) {
+                out.write(data, off, Math.min(bufferSize, data.length - off));
+            }
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    private Cipher cipher(int mode) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        c.init(mode, key, iv);
+        return c;
+    }
+}
@@ -0,0 +1,247 @@
+package org.nick.abe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Compresses a tar stream, following its entries as they are written and
+// changing the Deflater level at the start of each one. Files that are
+// compressed already (by name, or by the entropy of their first bytes) get
+// the fast level, everything else, SQLite databases included, the text
+// level. Changing the level only ends the current deflate block, so the
+// result is still a single zlib stream.
+//
+// If what is written stops looking like a tar, the rest is compressed at
+// the level in use.
+class AdaptiveDeflaterOutputStream extends DeflaterOutputStream {
+
+    static final double DEFAULT_ENTROPY_THRESHOLD = 7.5;
+    static final int SAMPLE_SIZE = 4 * 1024;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_PAX_SIZE = 1024 * 1024;
+    private static final byte[] SQLITE_MAGIC = "SQLite format 3\0"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "apk", "jar", "zip", "obb", "gz", "tgz", "xz", "bz2", "7z", "zst", "lz4", "br",
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+            "mp3", "m4a", "aac", "ogg", "opus", "flac", "mp4", "m4v", "3gp", "webm", "mkv"));
+
+    private final int textLevel;
+    private final int fastLevel;
+    private final double entropyThreshold;
+
+    private final byte[] header = new byte[TarReader.BLOCK_SIZE];
+    private int headerFill;
+    private long headerOffset;
+    // of the current entry, padding included
+    private long dataRemaining;
+    // the first bytes of the current entry, held back until the level is
+    // chosen, or a whole pax header
+    private byte[] sample = new byte[SAMPLE_SIZE];
+    private int sampleSize;
+    private int sampleFill;
+    private boolean pax;
+    private long paxSize = -1;
+    private boolean following = true;
+
+    private int level;
+    private int strategy = Deflater.DEFAULT_STRATEGY;
+
+    AdaptiveDeflaterOutputStream(OutputStream out, int textLevel, int fastLevel,
+            double entropyThreshold) {
+        super(out, new Deflater(textLevel), BUFFER_SIZE, true);
+        this.textLevel = textLevel;
+        this.fastLevel = fastLevel;
+        this.entropyThreshold = entropyThreshold;
+        this.level = textLevel;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0 && following) {
+            int n;
+            if (dataRemaining == 0) {
+                n = Math.min(len, header.length - headerFill);
+                System.arraycopy(b, off, header, headerFill, n);
+                super.write(b, off, n);
+                headerFill += n;
+                if (headerFill == header.length) {
+                    headerFill = 0;
+                    startEntry();
+                    headerOffset += header.length;
+                }
+            } else if (sampleFill < sampleSize) {
+                n = Math.min(len, sampleSize - sampleFill);
+                System.arraycopy(b, off, sample, sampleFill, n);
+                sampleFill += n;
+                dataRemaining -= n;
+                if (sampleFill == sampleSize) {
+                    endSample();
+                }
+            } else {
+                n = (int) Math.min(len, dataRemaining);
+                super.write(b, off, n);
+                dataRemaining -= n;
+            }
+            off += n;
+            len -= n;
+        }
+        if (len > 0) {
+            super.write(b, off, len);
+        }
+    }
+
+    private void startEntry() throws IOException {
+        if (TarReader.isZeroBlock(header)) {
+            // end of archive
+            return;
+        }
+        long size;
+        try {
+            if (!TarReader.isChecksumValid(header, headerOffset)) {
+                stopFollowing();
+                return;
+            }
+            size = TarReader.parseNumber(header, 124, 12, headerOffset);
+        } catch (IOException e) {
+            stopFollowing();
+            return;
+        }
+
+        char type = (char) header[156];
+        pax = type == 'x';
+        sampleSize = 0;
+        sampleFill = 0;
+        if (pax) {
+            if (size > MAX_PAX_SIZE) {
+                stopFollowing();
+                return;
+            }
+            sampleSize = (int) size;
+        } else if (type != 'g' && type != 'L' && type != 'K') {
+            if (paxSize >= 0) {
+                size = paxSize;
+                paxSize = -1;
+            }
+            // links, devices, directories and fifos never carry data
+            if (type >= '1' && type <= '6') {
+                size = 0;
+            }
+            if (size > 0) {
+                if (isCompressedType(TarReader.headerName(header))) {
+                    setLevel(fastLevel, Deflater.DEFAULT_STRATEGY);
+                } else {
+                    sampleSize = (int) Math.min(size, SAMPLE_SIZE);
+                }
+            }
+        }
+        if (sampleSize > sample.length) {
+            sample = new byte[sampleSize];
+        }
+        dataRemaining = TarReader.padded(size);
+        headerOffset += dataRemaining;
+    }
+
+    private void endSample() throws IOException {
+        if (pax) {
+            try {
+                for (String[] record : TarReader.parsePax(Arrays.copyOf(sample, sampleFill))) {
+                    if ("size".equals(record[0])) {
+                        paxSize = Long.parseLong(record[1]);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                super.write(sample, 0, sampleFill);
+                stopFollowing();
+                return;
+            }
+        } else if (startsWith(sample, sampleFill, SQLITE_MAGIC)
+                || entropy(sample, sampleFill) < entropyThreshold) {
+            setLevel(textLevel, Deflater.DEFAULT_STRATEGY);
+        } else {
+            // noise to the matcher, the Huffman codes may still gain a little
+            setLevel(fastLevel, fastLevel == Deflater.NO_COMPRESSION
+                    ? Deflater.DEFAULT_STRATEGY : Deflater.HUFFMAN_ONLY);
+        }
+        super.write(sample, 0, sampleFill);
+    }
+
+    private void stopFollowing() {
+        following = false;
+        sample = null;
+    }
+
+    private void setLevel(int newLevel, int newStrategy) {
+        if (newLevel != level || newStrategy != strategy) {
+            def.setLevel(newLevel);
+            def.setStrategy(newStrategy);
+            level = newLevel;
+            strategy = newStrategy;
+        }
+    }
+
+    static boolean isCompressedType(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/')) {
+            return false;
+        }
+        return COMPRESSED_TYPES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // Shannon entropy in bits per byte, 8 for random data
+    static double entropy(byte[] data, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (following && sampleFill < sampleSize) {
+            // the tar ended in the middle of an entry
+            super.write(sample, 0, sampleFill);
+            stopFollowing();
+        }
+        super.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            def.end();
+        }
+    }
+}
@@ -1,29 +1,40 @@
 
 package org.nick.abe;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Console;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -36,253 +47,583 @@ import org.bouncycastle.crypto.params.KeyParameter;
 public class AndroidBackup {
 
     private static final int BACKUP_MANIFEST_VERSION = 1;
-    private static final String BACKUP_FILE_HEADER_MAGIC = "ANDROID BACKUP\n";
-    private static final int BACKUP_FILE_V1 = 1;
-    private static final int BACKUP_FILE_V2 = 2;
+    static final String BACKUP_FILE_HEADER_MAGIC = "ANDROID BACKUP\n";
+    static final int BACKUP_FILE_V1 = 1;
+    static final int BACKUP_FILE_V2 = 2;
     private static final int BACKUP_FILE_V3 = 3;
     private static final int BACKUP_FILE_V4 = 4;
-    private static final int BACKUP_FILE_V5 = 5;
+    static final int BACKUP_FILE_V5 = 5;
 
-    private static final String ENCRYPTION_MECHANISM = "AES/CBC/PKCS5Padding";
+    static final String ENCRYPTION_MECHANISM = "AES/CBC/PKCS5Padding";
     private static final int PBKDF2_HASH_ROUNDS = 10000;
     private static final int PBKDF2_KEY_SIZE = 256; // bits
     private static final int MASTER_KEY_SIZE = 256; // bits
-    private static final int PBKDF2_SALT_SIZE = 512; // bits
-    private static final String ENCRYPTION_ALGORITHM_NAME = "AES-256";
+    static final int PBKDF2_SALT_SIZE = 512; // bits
+    static final String ENCRYPTION_ALGORITHM_NAME = "AES-256";
 
     private static final boolean DEBUG = false;
 
     private static final SecureRandom random = new SecureRandom();
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
     private AndroidBackup() {
     }
 
     public static void extractAsTar(String backupFilename, String filename,
             String password) {
-        try {
-            InputStream rawInStream = getInputStream(backupFilename);
-            CipherInputStream cipherStream = null;
+        extractAsTar(backupFilename, filename, password, new ExtractOptions());
+    }
 
-            // To prevent the NumberFormatException when trying to figure out the backup version
-            if (Files.size(Paths.get(backupFilename)) == 0) {
-                throw new IllegalStateException("File too small in size");
+    public static void extractAsTar(String backupFilename, String filename,
+            String password, ExtractOptions options) {
+        long start = System.nanoTime();
+        MetricsListener listener = options.getMetricsListener();
+        ExtractMetrics metrics = new ExtractMetrics();
+        try (BackupSource source = BackupSource.open(backupFilename, password, options)) {
+            BackupHeader header = source.getHeader();
+            if (DEBUG) {
+                System.err.println(header);
             }
 
-            String magic = readHeaderLine(rawInStream); // 1
-            if (DEBUG) {
-                System.err.println("Magic: " + magic);
+            //Get input file size for percentage printing
+            long fileSize = "-".equals(backupFilename) ? -1 : new File(backupFilename).length();
+
+            if (options.getJournalSpacing() > 0 || options.isResume()) {
+                extractResumable(source, backupFilename, filename, options,
+                        progress(listener, fileSize), metrics);
+            } else if (!header.isEncrypted() && !header.isCompressed()) {
+                // nothing to decode, copy the body as is
+                extractCopy(source, backupFilename, filename, metrics);
+            } else if (header.isCompressed() && options.getInflateThreads() > 1) {
+                extractParallelInflate(source, filename, options.getInflateThreads(), metrics);
+            } else if (options.isPipelined()) {
+                // the pipeline runs the cipher in its own stage if there is one
+                Cipher bodyCipher = source.getBodyCipher();
+                extractPipelined(bodyCipher != null ? source.getBodyStream()
+                        : source.getDecryptedStream(), bodyCipher,
+                        header.isCompressed(), filename, progress(listener, fileSize),
+                        metrics);
+            } else {
+                extractSerial(source, filename, progress(listener, fileSize), metrics);
             }
-            String versionStr = readHeaderLine(rawInStream); // 2
-            if (DEBUG) {
-                System.err.println("Version: " + versionStr);
+
+            if (listener != null) {
+                source.addOpenMetrics(metrics);
+                if (fileSize >= 0) {
+                    metrics.setBackupBytes(fileSize);
+                    if (metrics.getBodyBytes() == 0) {
+                        metrics.setBodyBytes(fileSize - header.getBodyOffset());
+                    }
+                }
+                metrics.setTotalNanos(System.nanoTime() - start);
+                listener.finished(metrics);
             }
-            int version = Integer.parseInt(versionStr);
-            if (version < BACKUP_FILE_V1 || version > BACKUP_FILE_V5) {
-                throw new IllegalArgumentException(
-                        "Don't know how to process version " + versionStr);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Progress progress(MetricsListener listener, long fileSize) {
+        return new Progress(listener != null ? listener : new Progress.PercentPrinter(),
+                fileSize);
+    }
+
+    private static void extractCopy(BackupSource source, String backupFilename,
+            String filename, ExtractMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel in = source.getRawStream().getChannel();
+                FileChannel out = getOutputChannel(filename)) {
+            long written;
+            if (isStdio(backupFilename, filename)) {
+                // can't seek back, start with what the header parser read ahead
+                ByteBuffer buffered = source.getHeaderParser().getBufferedBody();
+                written = buffered.remaining();
+                while (buffered.hasRemaining()) {
+                    out.write(buffered);
+                }
+                written += ChannelCopy.copy(in, out);
+            } else {
+                written = ChannelCopy.transferTo(in, source.getHeader().getBodyOffset(), out);
             }
+            System.err.printf("%d bytes written to %s.\n", written, filename);
+            metrics.setMode("copy");
+            metrics.setBodyBytes(written);
+            metrics.setTarBytes(written);
+            metrics.addStage("copy", written, System.nanoTime() - start);
+        }
+    }
 
-            String compressed = readHeaderLine(rawInStream); // 3
-            boolean isCompressed = Integer.parseInt(compressed) == 1;
-            if (DEBUG) {
-                System.err.println("Compressed: " + compressed);
+    private static void extractResumable(BackupSource source, String backupFilename,
+            String filename, ExtractOptions options, Progress progress,
+            ExtractMetrics metrics) throws IOException, GeneralSecurityException {
+        if (isStdio(backupFilename, filename)) {
+            throw new IllegalArgumentException(
+                    "Can't journal standard input or output, use files");
+        }
+        long spacing = options.getJournalSpacing() > 0 ? options.getJournalSpacing()
+                : ExtractJournal.DEFAULT_SPACING;
+        ResumableExtractor extractor = new ResumableExtractor(Paths.get(backupFilename),
+                source.getHeader(), source.getMasterKey(), spacing);
+        long start = System.nanoTime();
+        long written = extractor.run(Paths.get(filename), options.isResume(), progress);
+        if (extractor.getResumedAt() > 0) {
+            System.err.printf("\nResumed at %d bytes.", extractor.getResumedAt());
+        }
+        System.err.printf("\n%d bytes written to %s.\n", written, filename);
+        metrics.setMode("resumable");
+        metrics.setTarBytes(written);
+        metrics.setBodyBytes(extractor.getBackupOffset() - source.getHeader().getBodyOffset());
+        metrics.addStage("decode", written - extractor.getResumedAt(),
+                System.nanoTime() - start);
+    }
+
+    private static void extractSerial(BackupSource source, String filename,
+            Progress progress, ExtractMetrics metrics) throws IOException {
+        boolean compressed = source.getHeader().isCompressed();
+        InputStream in = source.openTarStream();
+        OutputStream out = null;
+        long writeNanos = 0;
+        long totalRead = 0; // of the input file decompressed
+        try {
+            out = getOutputStream(filename);
+            byte[] buff = new byte[10 * 1024];
+            int read;
+            while ((read = in.read(buff)) > 0) {
+                long start = System.nanoTime();
+                out.write(buff, 0, read);
+                writeNanos += System.nanoTime() - start;
+                totalRead += read;
+                if (DEBUG && (totalRead % 100 * 1024 == 0)) {
+                    System.err.printf("%d bytes read\n", totalRead);
+                }
+                // of the input file compressed
+                progress.update(compressed ? source.getCompressedBytesRead() : totalRead);
             }
-            String encryptionAlg = readHeaderLine(rawInStream); // 4
-            if (DEBUG) {
-                System.err.println("Algorithm: " + encryptionAlg);
+            System.err.printf("\n%d bytes written to %s.\n",
+                    totalRead, filename);
+        } finally {
+            in.close();
+
+            if (out != null) {
+                long start = System.nanoTime();
+                out.flush();
+                out.close();
+                writeNanos += System.nanoTime() - start;
             }
-            boolean isEncrypted = false;
+        }
+        metrics.setMode("serial");
+        metrics.setTarBytes(totalRead);
+        source.addStreamMetrics(metrics);
+        metrics.addStage("write", totalRead, writeNanos);
+    }
 
-            if (encryptionAlg.equals(ENCRYPTION_ALGORITHM_NAME)) {
-                isEncrypted = true;
+    private static void extractParallelInflate(BackupSource source, String filename,
+            int threads, ExtractMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (OutputStream out = getOutputStream(filename)) {
+            long written;
+            IndexedReader reader = IndexedReader.forSource(source);
+            if (reader != null) {
+                // known block boundaries, no need to look for them
+                written = ParallelInflater.inflate(reader, out, pool, threads);
+                System.err.printf("Inflated from %d index checkpoints.\n",
+                        reader.getIndex().getCheckpoints().size());
+            } else {
+                written = ParallelInflater.inflate(source.getDecryptedStream(), out, pool,
+                        threads);
+            }
+            out.flush();
+            System.err.printf("%d bytes written to %s.\n", written, filename);
+            // read, decrypt, inflate and write overlap, only the total is known
+            metrics.setMode("parallel-inflate");
+            metrics.setTarBytes(written);
+            metrics.addStage("inflate", written, System.nanoTime() - start);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-                if (Cipher.getMaxAllowedKeyLength("AES") < MASTER_KEY_SIZE) {
-                    System.err.println("WARNING: Maximum allowed key-length seems smaller than needed. " +
-                            "Please check that unlimited strength cryptography is available, see README.md for details");
+    // Like extractAsTar(), but writes the entries of the tar straight into
+    // directory instead of writing the tar itself.
+    public static void extractToDirectory(String backupFilename, String directory,
+            String password, ExtractOptions options) {
+        long start = System.nanoTime();
+        MetricsListener listener = options.getMetricsListener();
+        try (BackupSource source = BackupSource.open(backupFilename, password, options);
+                InputStream in = source.openTarStream()) {
+            DirectoryExtractor extractor = new DirectoryExtractor(Paths.get(directory),
+                    options.getWriteThreads());
+            long extractStart = System.nanoTime();
+            extractor.extract(new TarReader(in));
+            long extractNanos = System.nanoTime() - extractStart;
+            System.err.printf("%d files, %d bytes written to %s.\n",
+                    extractor.getFileCount(), extractor.getByteCount(), directory);
+
+            if (listener != null) {
+                ExtractMetrics metrics = new ExtractMetrics();
+                metrics.setMode("directory");
+                source.addStreamMetrics(metrics);
+                // whatever the extractor did besides reading the tar
+                long readNanos = 0;
+                for (ExtractMetrics.Stage stage : metrics.getStages()) {
+                    readNanos += stage.getNanos();
                 }
-
-                if (password == null || "".equals(password)) {
-                    Console console = System.console();
-                    if (console != null) {
-                        System.err.println("This backup is encrypted, please provide the password");
-                        password = new String(console.readPassword("Password: "));
-                    } else {
-                        throw new IllegalArgumentException(
-                                "Backup encrypted but password not specified");
-                    }
+                metrics.addStage("write", extractor.getByteCount(), extractNanos - readNanos);
+                if (!"-".equals(backupFilename)) {
+                    metrics.setBackupBytes(new File(backupFilename).length());
                 }
+                metrics.setTotalNanos(System.nanoTime() - start);
+                listener.finished(metrics);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                String userSaltHex = readHeaderLine(rawInStream); // 5
-                byte[] userSalt = hexToByteArray(userSaltHex);
-                if (userSalt.length != PBKDF2_SALT_SIZE / 8) {
-                    throw new IllegalArgumentException("Invalid salt length: "
-                            + userSalt.length);
+    // Writes the tar of the backup as one tar per package into directory,
+    // see PackageSplitter. includes and excludes select packages, * matching
+    // anything; either may be null.
+    public static void extractSplit(String backupFilename, String directory,
+            String password, List<String> includes, List<String> excludes,
+            ExtractOptions options) {
+        long start = System.nanoTime();
+        MetricsListener listener = options.getMetricsListener();
+        try (BackupSource source = BackupSource.open(backupFilename, password, options);
+                InputStream in = source.openTarStream()) {
+            PackageSplitter splitter = new PackageSplitter(Paths.get(directory), includes,
+                    excludes, options.getWriteThreads());
+            long splitStart = System.nanoTime();
+            splitter.split(new TarReader(in));
+            long splitNanos = System.nanoTime() - splitStart;
+            System.err.printf("%d packages, %d entries, %d bytes written to %s, "
+                    + "%d entries skipped.\n", splitter.getPackageCount(),
+                    splitter.getEntryCount(), splitter.getByteCount(), directory,
+                    splitter.getSkippedCount());
+
+            if (listener != null) {
+                ExtractMetrics metrics = new ExtractMetrics();
+                metrics.setMode("split");
+                source.addStreamMetrics(metrics);
+                long readNanos = 0;
+                for (ExtractMetrics.Stage stage : metrics.getStages()) {
+                    readNanos += stage.getNanos();
+                }
+                metrics.addStage("write", splitter.getByteCount(), splitNanos - readNanos);
+                if (!"-".equals(backupFilename)) {
+                    metrics.setBackupBytes(new File(backupFilename).length());
                 }
+                metrics.setTotalNanos(System.nanoTime() - start);
+                listener.finished(metrics);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                String ckSaltHex = readHeaderLine(rawInStream); // 6
-                byte[] ckSalt = hexToByteArray(ckSaltHex);
-
-                int rounds = Integer.parseInt(readHeaderLine(rawInStream)); // 7
-                String userIvHex = readHeaderLine(rawInStream); // 8
-
-                String masterKeyBlobHex = readHeaderLine(rawInStream); // 9
-
-                // decrypt the master key blob
-                Cipher c = Cipher.getInstance(ENCRYPTION_MECHANISM);
-                // XXX we don't support non-ASCII passwords
-                SecretKey userKey = buildPasswordKey(password, userSalt, rounds, false);
-                byte[] IV = hexToByteArray(userIvHex);
-                IvParameterSpec ivSpec = new IvParameterSpec(IV);
-                c.init(Cipher.DECRYPT_MODE,
-                        new SecretKeySpec(userKey.getEncoded(), "AES"), ivSpec);
-                byte[] mkCipher = hexToByteArray(masterKeyBlobHex);
-                byte[] mkBlob = c.doFinal(mkCipher);
-
-                // first, the master key IV
-                int offset = 0;
-                int len = mkBlob[offset++];
-                IV = Arrays.copyOfRange(mkBlob, offset, offset + len);
-                if (DEBUG) {
-                    System.err.println("IV: " + toHex(IV));
+    // Decodes the whole backup like extractAsTar(), but instead of writing
+    // the tar checks it and computes the SHA-256 of each file, see
+    // BackupVerifier. The digests are written to manifestFilename in the
+    // format of sha256sum, unless it is null. Throws if anything is wrong.
+    public static void verify(String backupFilename, String password,
+            String manifestFilename, ExtractOptions options) {
+        long start = System.nanoTime();
+        try (BackupSource source = BackupSource.open(backupFilename, password, options);
+                InputStream in = source.openTarStream()) {
+            BackupVerifier verifier = new BackupVerifier(options.getDigestThreads());
+            verifier.verify(in);
+            if (manifestFilename != null) {
+                PrintStream manifest = "-".equals(manifestFilename) ? System.out
+                        : new PrintStream(new FileOutputStream(manifestFilename), false,
+                                "UTF-8");
+                for (BackupVerifier.Digest digest : verifier.getDigests()) {
+                    manifest.print(digest + "\n");
                 }
-                offset += len;
-                // then the master key itself
-                len = mkBlob[offset++];
-                byte[] mk = Arrays.copyOfRange(mkBlob, offset, offset + len);
-                if (DEBUG) {
-                    System.err.println("MK: " + toHex(mk));
+                manifest.flush();
+                if (manifest != System.out) {
+                    manifest.close();
                 }
-                offset += len;
-                // and finally the master key checksum hash
-                len = mkBlob[offset++];
-                byte[] mkChecksum = Arrays.copyOfRange(mkBlob, offset, offset
-                        + len);
-                if (DEBUG) {
-                    System.err.println("MK checksum: " + toHex(mkChecksum));
+                if (manifest.checkError()) {
+                    throw new IOException("Writing " + manifestFilename + " failed");
                 }
+            }
+            if (verifier.getIgnoredBytes() > 0) {
+                System.err.printf("Warning: %d bytes of data after the end-of-archive"
+                        + " marker.\n", verifier.getIgnoredBytes());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.printf("%s OK: %d entries, %d files, %d bytes of tar in %.2f s"
+                    + " (%.1f MB/s).\n", backupFilename, verifier.getEntryCount(),
+                    verifier.getDigests().size(), verifier.getTarLength(), seconds,
+                    verifier.getTarLength() / 1e6 / seconds);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-                // now validate the decrypted master key against the checksum
-                // first try the algorithm matching the archive version
-                boolean useUtf = version >= BACKUP_FILE_V2;
-                byte[] calculatedCk = makeKeyChecksum(mk, ckSalt, rounds, useUtf);
-                System.err.printf("Calculated MK checksum (use UTF-8: %s): %s\n", useUtf, toHex(calculatedCk));
-                if (!Arrays.equals(calculatedCk, mkChecksum)) {
-                    System.err.println("Checksum does not match.");
-                    // try the reverse
-                    calculatedCk = makeKeyChecksum(mk, ckSalt, rounds, !useUtf);
-                    System.err.printf("Calculated MK checksum (use UTF-8: %s): %s\n", useUtf, toHex(calculatedCk));
-                }
+    // Decodes the whole backup once and writes its index next to it, see
+    // BackupIndex. extractEntries() then only decodes the entries it needs.
+    public static void writeIndex(String backupFilename, String password,
+            ExtractOptions options) {
+        if ("-".equals(backupFilename)) {
+            throw new IllegalArgumentException("Can't index standard input");
+        }
+        try (BackupSource source = BackupSource.open(backupFilename, password, options)) {
+            BackupIndex index = BackupIndex.build(source, options.getCheckpointSpacing());
+            String indexFilename = BackupIndex.indexFilename(backupFilename);
+            index.write(indexFilename);
+            System.err.printf("%d entries, %d checkpoints written to %s.\n",
+                    index.getEntries().size(), index.getCheckpoints().size(), indexFilename);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Writes a tar with the entries named entryName (or below it, if it is a
+    // directory) or belonging to packageName, using the index of the backup.
+    public static void extractEntries(String backupFilename, String filename,
+            String password, String entryName, String packageName) {
+        extractEntries(backupFilename, filename, password, entryName, packageName,
+                new ExtractOptions());
+    }
 
-                if (Arrays.equals(calculatedCk, mkChecksum)) {
-                    ivSpec = new IvParameterSpec(IV);
-                    c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(mk, "AES"),
-                            ivSpec);
-                    // Only if all of the above worked properly will 'result' be
-                    // assigned
-                    cipherStream = new CipherInputStream(rawInStream, c);
+    public static void extractEntries(String backupFilename, String filename,
+            String password, String entryName, String packageName, ExtractOptions options) {
+        try {
+            IndexedReader reader = IndexedReader.open(backupFilename, password,
+                    options.getKeyCache());
+
+            // consecutive entries are decoded in one go
+            List<long[]> ranges = new ArrayList<>();
+            int count = 0;
+            for (TarEntry entry : reader.getIndex().getEntries()) {
+                boolean matches = entry.getName().equals(entryName)
+                        || (entryName != null && entry.getName().startsWith(entryName + "/"))
+                        || (packageName != null && packageName.equals(entry.getPackageName()));
+                if (!matches) {
+                    continue;
+                }
+                count++;
+                long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && last[1] == entry.getHeaderOffset()) {
+                    last[1] = entry.getEndOffset();
+                } else {
+                    ranges.add(new long[] { entry.getHeaderOffset(), entry.getEndOffset() });
                 }
             }
-
-            if (isEncrypted && cipherStream == null) {
-                throw new IllegalStateException(
-                        "Invalid password or master key checksum.");
+            if (ranges.isEmpty()) {
+                throw new IllegalArgumentException("No matching entries in " + backupFilename);
             }
 
-            //Get input file size for percentage printing
-            double fileSize = new File(backupFilename).length();
-            double percentDone = -1;
-
-            OutputStream out = null;
-            InputStream baseStream = isEncrypted ? cipherStream : rawInStream;
-            Inflater inf = null;
-            InputStream in;
-            if (isCompressed) {
-                // The Inflater is needed to get the correct percentage because of compression
-                inf = new Inflater();
-                in = new InflaterInputStream(baseStream, inf);
-            } else
-                in = baseStream;
-
-            try {
-                out = getOutputStream(filename);
-                byte[] buff = new byte[10 * 1024];
-                int read;
-                long totalRead = 0; // of the input file decompressed
-                double currentPercent; // of the input file
-                long bytesRead; // of the input file compressed
-                while ((read = in.read(buff)) > 0) {
-                    out.write(buff, 0, read);
-                    totalRead += read;
-                    if (DEBUG && (totalRead % 100 * 1024 == 0)) {
-                        System.err.printf("%d bytes read\n", totalRead);
+            long written = 0;
+            try (OutputStream out = getOutputStream(filename)) {
+                byte[] buff = new byte[64 * 1024];
+                InputStream in = null;
+                long position = 0;
+                try {
+                    for (long[] range : ranges) {
+                        if (in == null || reader.restartOffset(range[0]) > position) {
+                            // a checkpoint closer than the current position
+                            if (in != null) {
+                                in.close();
+                            }
+                            in = reader.openAt(range[0]);
+                        } else {
+                            IndexedReader.skipFully(in, range[0] - position);
+                        }
+                        position = range[0];
+                        while (position < range[1]) {
+                            int read = in.read(buff, 0,
+                                    (int) Math.min(buff.length, range[1] - position));
+                            if (read < 0) {
+                                throw new EOFException("Unexpected end of backup");
+                            }
+                            out.write(buff, 0, read);
+                            position += read;
+                        }
+                        written += range[1] - range[0];
                     }
-                    //Log the percentage extracted
-                    bytesRead = inf == null ? totalRead : inf.getBytesRead();
-                    currentPercent = Math.round(bytesRead / fileSize * 100);
-                    if (currentPercent != percentDone) {
-                        System.err.printf("%.0f%% ", currentPercent);
-                        percentDone = currentPercent;
+                } finally {
+                    if (in != null) {
+                        in.close();
                     }
                 }
-                System.err.printf("\n%d bytes written to %s.\n",
-                        totalRead, filename);
-
-            } finally {
-                in.close();
-
-                if (out != null) {
-                    out.flush();
-                    out.close();
-                }
+                // end-of-archive marker
+                out.write(new byte[2 * TarReader.BLOCK_SIZE]);
+                written += 2 * TarReader.BLOCK_SIZE;
+                out.flush();
             }
+            System.err.printf("%d entries, %d bytes written to %s.\n", count, written,
+                    filename);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public static void packTar(String tarFilename, String backupFilename,
-            String password, boolean isKitKat) {
-        boolean encrypting = password != null && !"".equals(password);
-        boolean compressing = true;
+    // asks for the password of an encrypted backup if none was given
+    static String requirePassword(String password) throws GeneralSecurityException {
+        if (Cipher.getMaxAllowedKeyLength("AES") < MASTER_KEY_SIZE) {
+            System.err.println("WARNING: Maximum allowed key-length seems smaller than needed. " +
+                    "Please check that unlimited strength cryptography is available, see README.md for details");
+        }
 
-        StringBuilder headerbuf = new StringBuilder(1024);
+        if (password == null || "".equals(password)) {
+            Console console = System.console();
+            if (console != null) {
+                System.err.println("This backup is encrypted, please provide the password");
+                password = new String(console.readPassword("Password: "));
+            } else {
+                throw new IllegalArgumentException(
+                        "Backup encrypted but password not specified");
+            }
+        }
+        return password;
+    }
 
-        headerbuf.append(BACKUP_FILE_HEADER_MAGIC);
-        // integer, no trailing \n
-        headerbuf.append(isKitKat ? BACKUP_FILE_V2 : BACKUP_FILE_V1);
-        headerbuf.append(compressing ? "\n1\n" : "\n0\n");
+    // decrypts the master key blob with the password and validates it
+    // against its checksum
+    static MasterKey unwrapMasterKey(BackupHeader header, String password)
+            throws GeneralSecurityException {
+        return unwrapMasterKey(header, password, null, true);
+    }
 
-        OutputStream out = null;
-        try {
-            InputStream in = getInputStream(tarFilename);
-            OutputStream ofstream = getOutputStream(backupFilename);
-            OutputStream finalOutput = ofstream;
-            // Set up the encryption stage if appropriate, and emit the correct
-            // header
-            if (encrypting) {
-                finalOutput = emitAesBackupHeader(headerbuf, finalOutput,
-                        password, isKitKat);
-            } else {
-                headerbuf.append("none\n");
+    // userKey is the derivation of the user key if already started, see
+    // KeyDerivation.UserKeyPrefetch. verbose prints the checksums.
+    static MasterKey unwrapMasterKey(BackupHeader header, String password,
+            Future<SecretKey> userKey, boolean verbose) throws GeneralSecurityException {
+        byte[] ckSalt = header.getChecksumSalt();
+        int rounds = header.getRounds();
+
+        // decrypt the master key blob
+        Cipher c = Ciphers.getInstance(ENCRYPTION_MECHANISM);
+        SecretKey key;
+        if (userKey == null) {
+            // XXX we don't support non-ASCII passwords
+            key = buildPasswordKey(password, header.getUserSalt(), rounds, false);
+        } else {
+            try {
+                key = KeyDerivation.await(userKey);
+            } catch (InterruptedException e) {
+                userKey.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while deriving the user key", e);
             }
+        }
+        byte[] IV = header.getUserIv();
+        IvParameterSpec ivSpec = new IvParameterSpec(IV);
+        c.init(Cipher.DECRYPT_MODE,
+                new SecretKeySpec(key.getEncoded(), "AES"), ivSpec);
+        byte[] mkCipher = header.getMasterKeyBlob();
+        byte[] mkBlob = c.doFinal(mkCipher);
+
+        // first, the master key IV
+        int offset = 0;
+        int len = mkBlob[offset++];
+        IV = Arrays.copyOfRange(mkBlob, offset, offset + len);
+        if (DEBUG) {
+            System.err.println("IV: " + toHex(IV));
+        }
+        offset += len;
+        // then the master key itself
+        len = mkBlob[offset++];
+        byte[] mk = Arrays.copyOfRange(mkBlob, offset, offset + len);
+        if (DEBUG) {
+            System.err.println("MK: " + toHex(mk));
+        }
+        offset += len;
+        // and finally the master key checksum hash
+        len = mkBlob[offset++];
+        byte[] mkChecksum = Arrays.copyOfRange(mkBlob, offset, offset
+                + len);
+        if (DEBUG) {
+            System.err.println("MK checksum: " + toHex(mkChecksum));
+        }
 
-            byte[] header = headerbuf.toString().getBytes(StandardCharsets.UTF_8);
-            ofstream.write(header);
+        // now validate the decrypted master key against the checksum, trying
+        // the algorithm matching the archive version and the other one
+        boolean useUtf = header.getVersion() >= BACKUP_FILE_V2;
+        if (!KeyDerivation.checksumMatches(mk, ckSalt, rounds, useUtf, mkChecksum, verbose)) {
+            throw new IllegalStateException(
+                    "Invalid password or master key checksum.");
+        }
+        return new MasterKey(mk, IV);
+    }
 
-            // Set up the compression stage feeding into the encryption stage
-            // (if any)
-            if (compressing) {
-                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
-                // requires Java 7
-                finalOutput = new DeflaterOutputStream(finalOutput, deflater,
-                        true);
+    private static void extractPipelined(InputStream bodyStream, Cipher bodyCipher,
+            boolean isCompressed, String filename, final Progress progress,
+            ExtractMetrics metrics) throws IOException {
+        final PipelinedExtractor pipeline = new PipelinedExtractor(bodyStream,
+                bodyCipher, isCompressed);
+        Runnable progressUpdate = new Runnable() {
+            @Override
+            public void run() {
+                progress.update(pipeline.getBytesRead());
             }
+        };
+
+        long start = System.nanoTime();
+        OutputStream out = getOutputStream(filename);
+        long totalRead;
+        try {
+            totalRead = pipeline.run(out, progressUpdate);
+        } finally {
+            bodyStream.close();
+            out.flush();
+            out.close();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.err.printf("\n%d bytes written to %s.\n", totalRead, filename);
+        metrics.setMode("pipelined");
+        metrics.setTarBytes(totalRead);
+        metrics.setBodyBytes(pipeline.getBytesRead());
+        for (PipelinedExtractor.StageStats stats : pipeline.getStageStats()) {
+            System.err.println(stats);
+            // all stages run for the whole time, waiting aside
+            metrics.addStage(stats.getName(), stats.getBytes(),
+                    elapsed - stats.getStarvedNanos() - stats.getBlockedNanos());
+        }
+    }
 
-            out = finalOutput;
+    public static void packTar(String tarFilename, String backupFilename,
+            String password, boolean isKitKat) {
+        packTar(tarFilename, backupFilename, password, isKitKat, new PackOptions());
+    }
 
+    public static void packTar(String tarFilename, String backupFilename,
+            String password, boolean isKitKat, PackOptions options) {
+        boolean encrypting = password != null && !"".equals(password);
+        boolean compressing = options.isCompressed();
+
+        if (!encrypting && !compressing) {
+            StringBuilder headerbuf = new StringBuilder(1024);
+            headerbuf.append(BACKUP_FILE_HEADER_MAGIC);
+            // integer, no trailing \n
+            headerbuf.append(isKitKat ? BACKUP_FILE_V2 : BACKUP_FILE_V1);
+            headerbuf.append("\n0\nnone\n");
+            packPlain(tarFilename, backupFilename,
+                    headerbuf.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        try (InputStream in = getInputStream(tarFilename);
+                BackupWriter out = BackupWriter.open(getOutputStream(backupFilename),
+                        password, isKitKat, options)) {
             byte[] buff = new byte[10 * 1024];
             int read;
-            int totalRead = 0;
+            long totalRead = 0;
             while ((read = in.read(buff)) > 0) {
                 out.write(buff, 0, read);
                 totalRead += read;
@@ -290,29 +631,149 @@ public class AndroidBackup {
                     System.err.printf("%d bytes written\n", totalRead);
                 }
             }
+            out.finish();
             System.err.printf("%d bytes written to %s.\n", totalRead,
                     backupFilename);
         } catch (Exception e) {
             throw new RuntimeException(e);
-        } finally {
-            if (out != null) {
-                try {
-                    out.flush();
-                    out.close();
-                } catch (IOException ignored) {
+        }
+    }
+
+    // Like packTar(), but with the tar made on the fly from the files in
+    // directory, see DirectoryPacker.
+    public static void packDirectory(String directory, String backupFilename,
+            String password, boolean isKitKat, PackOptions options) {
+        if (!Files.isDirectory(Paths.get(directory))) {
+            throw new IllegalArgumentException("Not a directory: " + directory);
+        }
+        DirectoryPacker packer = new DirectoryPacker(Paths.get(directory),
+                options.getReadThreads());
+        try (CountingOutputStream backup = new CountingOutputStream(
+                getOutputStream(backupFilename));
+                OutputStream buffered = new BufferedOutputStream(backup, 64 * 1024);
+                BackupWriter out = BackupWriter.open(buffered, password, isKitKat, options)) {
+            packer.pack(out);
+            out.finish();
+            buffered.flush();
+            System.err.printf("%d files, %d content bytes, %d bytes written to %s.\n",
+                    packer.getFileCount(), packer.getByteCount(), backup.getBytes(),
+                    backupFilename);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Changes the password of an encrypted backup. The body is encrypted
+    // with the random master key, which the password only wraps in the
+    // header, so the master key is unwrapped with oldPassword and wrapped
+    // again with newPassword, new salts and rounds PBKDF2 rounds (at least
+    // those of the backup and PBKDF2_HASH_ROUNDS if 0), and the body is
+    // copied as it is.
+    public static void rekey(String backupFilename, String newBackupFilename,
+            String oldPassword, String newPassword, int rounds, ExtractOptions options) {
+        if (newPassword == null || "".equals(newPassword)) {
+            throw new IllegalArgumentException("New password not specified");
+        }
+        if (rounds < 0) {
+            throw new IllegalArgumentException("Invalid number of rounds: " + rounds);
+        }
+        try {
+            if (!isStdio(backupFilename, newBackupFilename)
+                    && Files.exists(Paths.get(newBackupFilename))
+                    && Files.isSameFile(Paths.get(backupFilename),
+                            Paths.get(newBackupFilename))) {
+                throw new IllegalArgumentException("Can't rekey a backup in place");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try (BackupSource source = BackupSource.open(backupFilename, oldPassword, options)) {
+            BackupHeader header = source.getHeader();
+            if (!header.isEncrypted()) {
+                throw new IllegalArgumentException("Backup not encrypted, use pack to"
+                        + " encrypt it");
+            }
+            if (rounds == 0) {
+                rounds = Math.max(header.getRounds(), PBKDF2_HASH_ROUNDS);
+            }
+            MasterKey masterKey = source.getMasterKey();
+            StringBuilder headerbuf = new StringBuilder(1024);
+            headerbuf.append(BACKUP_FILE_HEADER_MAGIC);
+            headerbuf.append(header.getVersion());
+            headerbuf.append(header.isCompressed() ? "\n1\n" : "\n0\n");
+            // checksums are made from UTF-8 since version 2, as in packTar()
+            appendKeyLines(headerbuf, newPassword, masterKey.getKeyBytes(),
+                    masterKey.getIv(), rounds, header.getVersion() >= BACKUP_FILE_V2);
+
+            try (FileChannel in = source.getRawStream().getChannel();
+                    FileChannel out = getOutputChannel(newBackupFilename)) {
+                ByteBuffer headerBuffer = ByteBuffer.wrap(
+                        headerbuf.toString().getBytes(StandardCharsets.UTF_8));
+                while (headerBuffer.hasRemaining()) {
+                    out.write(headerBuffer);
+                }
+                long written;
+                if (isStdio(backupFilename, newBackupFilename)) {
+                    // can't seek back, start with what the header parser read ahead
+                    ByteBuffer buffered = source.getHeaderParser().getBufferedBody();
+                    written = buffered.remaining();
+                    while (buffered.hasRemaining()) {
+                        out.write(buffered);
+                    }
+                    written += ChannelCopy.copy(in, out);
+                } else {
+                    written = ChannelCopy.transferTo(in, header.getBodyOffset(), out);
                 }
+                System.err.printf("%d bytes of body written to %s (%d PBKDF2 rounds).\n",
+                        written, newBackupFilename, rounds);
             }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
     }
 
-    private static InputStream getInputStream(String filename) throws IOException {
+    // the tar goes into the body unchanged, so just append it to the header
+    private static void packPlain(String tarFilename, String backupFilename,
+            byte[] header) {
+        try (FileChannel in = getInputStream(tarFilename).getChannel();
+                FileChannel out = getOutputChannel(backupFilename)) {
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            while (headerBuffer.hasRemaining()) {
+                out.write(headerBuffer);
+            }
+            long written = isStdio(tarFilename, backupFilename)
+                    ? ChannelCopy.copy(in, out)
+                    : ChannelCopy.transferFrom(in, out, header.length);
+            System.err.printf("%d bytes written to %s.\n", written,
+                    backupFilename);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Unbuffered, even for stdin, so that nothing past the header is read
+    // ahead and the channel can take over right at the body.
+    static FileInputStream getInputStream(String filename) throws IOException {
         if (filename.equals("-")) {
-            return System.in;
+            return new FileInputStream(FileDescriptor.in);
         } else {
             return new FileInputStream(filename);
         }
     }
 
+    private static boolean isStdio(String inFilename, String outFilename) {
+        return "-".equals(inFilename) || "-".equals(outFilename);
+    }
+
+    private static FileChannel getOutputChannel(String filename) throws IOException {
+        if (filename.equals("-")) {
+            System.out.flush();
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        } else {
+            return new FileOutputStream(filename).getChannel();
+        }
+    }
+
     private static OutputStream getOutputStream(String filename) throws IOException {
         if (filename.equals("-")) {
             return System.out;
@@ -328,23 +789,34 @@ public class AndroidBackup {
         return array;
     }
 
-    private static OutputStream emitAesBackupHeader(StringBuilder headerbuf,
-            OutputStream ofstream, String encryptionPassword, boolean useUtf8) throws Exception {
-        // User key will be used to encrypt the master key.
-        byte[] newUserSalt = randomBytes(PBKDF2_SALT_SIZE);
-        SecretKey userKey = buildPasswordKey(encryptionPassword, newUserSalt,
-                PBKDF2_HASH_ROUNDS, useUtf8);
-
+    static OutputStream emitAesBackupHeader(StringBuilder headerbuf,
+            OutputStream ofstream, String encryptionPassword, boolean useUtf8)
+            throws IOException, GeneralSecurityException {
         // the master key is random for each backup
         byte[] masterPw = new byte[MASTER_KEY_SIZE / 8];
         random.nextBytes(masterPw);
-        byte[] checksumSalt = randomBytes(PBKDF2_SALT_SIZE);
 
         // primary encryption of the datastream with the random key
-        Cipher c = Cipher.getInstance(ENCRYPTION_MECHANISM);
+        Cipher c = Ciphers.getInstance(ENCRYPTION_MECHANISM);
         SecretKeySpec masterKeySpec = new SecretKeySpec(masterPw, "AES");
         c.init(Cipher.ENCRYPT_MODE, masterKeySpec);
-        OutputStream finalOutput = new CipherOutputStream(ofstream, c);
+        OutputStream finalOutput = new BulkCipherOutputStream(ofstream, c);
+
+        appendKeyLines(headerbuf, encryptionPassword, masterKeySpec.getEncoded(), c.getIV(),
+                PBKDF2_HASH_ROUNDS, useUtf8);
+
+        return finalOutput;
+    }
+
+    // Lines 4 to 9 of the header of an encrypted backup: the master key and
+    // IV wrapped with a key derived from password, with new salts.
+    private static void appendKeyLines(StringBuilder headerbuf, String password,
+            byte[] mk, byte[] masterIv, int rounds, boolean useUtf8)
+            throws IOException, GeneralSecurityException {
+        // User key will be used to encrypt the master key.
+        byte[] newUserSalt = randomBytes(PBKDF2_SALT_SIZE);
+        SecretKey userKey = buildPasswordKey(password, newUserSalt, rounds, useUtf8);
+        byte[] checksumSalt = randomBytes(PBKDF2_SALT_SIZE);
 
         // line 4: name of encryption algorithm
         headerbuf.append(ENCRYPTION_ALGORITHM_NAME);
@@ -356,11 +828,11 @@ public class AndroidBackup {
         headerbuf.append(toHex(checksumSalt));
         headerbuf.append('\n');
         // line 7: number of PBKDF2 rounds used [decimal]
-        headerbuf.append(PBKDF2_HASH_ROUNDS);
+        headerbuf.append(rounds);
         headerbuf.append('\n');
 
         // line 8: IV of the user key [hex]
-        Cipher mkC = Cipher.getInstance(ENCRYPTION_MECHANISM);
+        Cipher mkC = Ciphers.getInstance(ENCRYPTION_MECHANISM);
         mkC.init(Cipher.ENCRYPT_MODE, userKey);
 
         byte[] IV = mkC.getIV();
@@ -378,10 +850,8 @@ public class AndroidBackup {
         //
         // The checksum is the (master key + checksum salt), run through the
         // stated number of PBKDF2 rounds
-        IV = c.getIV();
-        byte[] mk = masterKeySpec.getEncoded();
-        byte[] checksum = makeKeyChecksum(masterKeySpec.getEncoded(),
-                checksumSalt, PBKDF2_HASH_ROUNDS, useUtf8);
+        IV = masterIv;
+        byte[] checksum = makeKeyChecksum(mk, checksumSalt, rounds, useUtf8);
 
         ByteArrayOutputStream blob = new ByteArrayOutputStream(IV.length
                 + mk.length + checksum.length + 3);
@@ -396,28 +866,25 @@ public class AndroidBackup {
         byte[] encryptedMk = mkC.doFinal(blob.toByteArray());
         headerbuf.append(toHex(encryptedMk));
         headerbuf.append('\n');
-
-        return finalOutput;
     }
 
     public static String toHex(byte[] bytes) {
-        StringBuilder buff = new StringBuilder();
-        for (byte b : bytes) {
-            buff.append(String.format("%02X", b));
+        char[] buff = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            buff[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            buff[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
         }
 
-        return buff.toString();
+        return new String(buff);
     }
 
-    private static String readHeaderLine(InputStream in) throws IOException {
-        int c;
-        StringBuilder buffer = new StringBuilder(80);
-        while ((c = in.read()) >= 0) {
-            if (c == '\n')
-                break; // consume and discard the newlines
-            buffer.append((char) c);
+    public static BackupHeader readHeader(String backupFilename) {
+        try (InputStream in = getInputStream(backupFilename)) {
+            // the header is short, no need for the full-size buffer
+            return new HeaderParser(in, 1024).parse();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
-        return buffer.toString();
     }
 
     public static byte[] hexToByteArray(String digits) {
@@ -428,13 +895,37 @@ public class AndroidBackup {
         }
 
         byte[] result = new byte[bytes];
-        for (int i = 0; i < digits.length(); i += 2) {
-            result[i / 2] = (byte) Integer.parseInt(digits.substring(i, i + 2),
-                    16);
+        for (int i = 0; i < bytes; i++) {
+            result[i] = (byte) ((hexValue(digits.charAt(2 * i)) << 4)
+                    | hexValue(digits.charAt(2 * i + 1)));
         }
         return result;
     }
 
+    // hex digits stored as ASCII bytes, from inclusive, to exclusive
+    static byte[] hexToByteArray(byte[] digits, int from, int to) {
+        final int bytes = (to - from) / 2;
+        if (2 * bytes != to - from) {
+            throw new IllegalArgumentException(
+                    "Hex string must have an even number of digits");
+        }
+
+        byte[] result = new byte[bytes];
+        for (int i = 0; i < bytes; i++) {
+            result[i] = (byte) ((hexValue((char) (digits[from + 2 * i] & 0xff)) << 4)
+                    | hexValue((char) (digits[from + 2 * i + 1] & 0xff)));
+        }
+        return result;
+    }
+
+    private static int hexValue(char c) {
+        int value = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+        if (value < 0) {
+            throw new NumberFormatException("Invalid hex digit: " + c);
+        }
+        return value;
+    }
+
     public static byte[] makeKeyChecksum(byte[] pwBytes, byte[] salt, int rounds, boolean useUtf8) {
         if (DEBUG) {
             System.err.println("key bytes: " + toHex(pwBytes));
@@ -498,7 +989,7 @@ public class AndroidBackup {
         return new SecretKeySpec(params.getKey(), "AES");
     }
 
-    private static SecretKey buildPasswordKey(String pw, byte[] salt, int rounds, boolean useUtf8) {
+    static SecretKey buildPasswordKey(String pw, byte[] salt, int rounds, boolean useUtf8) {
         return buildCharArrayKey(pw.toCharArray(), salt, rounds, useUtf8);
     }
 
@@ -0,0 +1,99 @@
+package org.nick.abe;
+
+// The plain-text header of a backup file:
+//
+// ANDROID BACKUP       magic
+// 5                    format version
+// 1                    compressed (0/1)
+// AES-256              encryption algorithm or "none"
+//
+// followed for encrypted backups by the user password salt, the master key
+// checksum salt, the PBKDF2 round count, the user key IV and the encrypted
+// master key blob, one per line. The body starts right after the last line.
+public class BackupHeader {
+
+    private final int version;
+    private final boolean compressed;
+    private final String encryptionAlgorithm;
+    private final byte[] userSalt;
+    private final byte[] checksumSalt;
+    private final int rounds;
+    private final byte[] userIv;
+    private final byte[] masterKeyBlob;
+    private final long bodyOffset;
+
+    BackupHeader(int version, boolean compressed, String encryptionAlgorithm,
+            byte[] userSalt, byte[] checksumSalt, int rounds, byte[] userIv,
+            byte[] masterKeyBlob, long bodyOffset) {
+        this.version = version;
+        this.compressed = compressed;
+        this.encryptionAlgorithm = encryptionAlgorithm;
+        this.userSalt = userSalt;
+        this.checksumSalt = checksumSalt;
+        this.rounds = rounds;
+        this.userIv = userIv;
+        this.masterKeyBlob = masterKeyBlob;
+        this.bodyOffset = bodyOffset;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public String getEncryptionAlgorithm() {
+        return encryptionAlgorithm;
+    }
+
+    public boolean isEncrypted() {
+        return userSalt != null;
+    }
+
+    // the remaining getters return null for unencrypted backups
+
+    public byte[] getUserSalt() {
+        return clone(userSalt);
+    }
+
+    public byte[] getChecksumSalt() {
+        return clone(checksumSalt);
+    }
+
+    // 0 for unencrypted backups
+    public int getRounds() {
+        return rounds;
+    }
+
+    public byte[] getUserIv() {
+        return clone(userIv);
+    }
+
+    public byte[] getMasterKeyBlob() {
+        return clone(masterKeyBlob);
+    }
+
+    // offset of the first body byte in the backup file
+    public long getBodyOffset() {
+        return bodyOffset;
+    }
+
+    private static byte[] clone(byte[] bytes) {
+        return bytes == null ? null : bytes.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Version: ").append(version).append('\n');
+        sb.append("Compressed: ").append(compressed).append('\n');
+        sb.append("Encryption: ").append(encryptionAlgorithm).append('\n');
+        if (isEncrypted()) {
+            sb.append("PBKDF2 rounds: ").append(rounds).append('\n');
+        }
+        sb.append("Body offset: ").append(bodyOffset);
+        return sb.toString();
+    }
+}
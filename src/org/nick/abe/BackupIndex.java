@@ -0,0 +1,325 @@
+package org.nick.abe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// The sidecar index of a backup (<backup>.idx): every tar entry with its
+// offsets in the decoded tar stream, and for compressed backups a list of
+// checkpoints from which inflating can start in the middle of the body.
+// A checkpoint is taken at a deflate block boundary and holds the bit offset
+// of the block in the compressed body, where decryption has to start for it
+// and with which IV, and the 32KB of tar data preceding it.
+//
+// Uncompressed backups need no checkpoints: any tar offset is a body offset,
+// and CBC decryption can start at any block using the previous ciphertext
+// block as IV.
+class BackupIndex {
+
+    static final String SUFFIX = ".idx";
+    static final int DEFAULT_SPACING = 1024 * 1024;
+
+    private static final byte[] MAGIC = "ABE INDEX 1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int AES_BLOCK_SIZE = 16;
+
+    static class Checkpoint {
+
+        private final long outputOffset;
+        private final long bitOffset;
+        private final long cipherOffset;
+        private final byte[] iv;
+        private final byte[] window;
+
+        Checkpoint(long outputOffset, long bitOffset, long cipherOffset, byte[] iv,
+                byte[] window) {
+            this.outputOffset = outputOffset;
+            this.bitOffset = bitOffset;
+            this.cipherOffset = cipherOffset;
+            this.iv = iv;
+            this.window = window;
+        }
+
+        // offset in the tar stream
+        long getOutputOffset() {
+            return outputOffset;
+        }
+
+        // offset of the deflate block in the decrypted body, in bits
+        long getBitOffset() {
+            return bitOffset;
+        }
+
+        // file offset of the cipher block containing the deflate block
+        long getCipherOffset() {
+            return cipherOffset;
+        }
+
+        // the ciphertext block preceding getCipherOffset(), null at the start
+        // of the body where the master key IV applies
+        byte[] getIv() {
+            return iv;
+        }
+
+        byte[] getWindow() {
+            return window;
+        }
+    }
+
+    private final long backupLength;
+    private final BackupHeader header;
+    private final List<TarEntry> entries;
+    private final List<Checkpoint> checkpoints;
+    private final long tarLength;
+
+    private BackupIndex(long backupLength, BackupHeader header, List<TarEntry> entries,
+            List<Checkpoint> checkpoints, long tarLength) {
+        this.backupLength = backupLength;
+        this.header = header;
+        this.entries = entries;
+        this.checkpoints = checkpoints;
+        this.tarLength = tarLength;
+    }
+
+    static String indexFilename(String backupFilename) {
+        return backupFilename + SUFFIX;
+    }
+
+    long getBackupLength() {
+        return backupLength;
+    }
+
+    BackupHeader getHeader() {
+        return header;
+    }
+
+    List<TarEntry> getEntries() {
+        return entries;
+    }
+
+    List<Checkpoint> getCheckpoints() {
+        return checkpoints;
+    }
+
+    long getTarLength() {
+        return tarLength;
+    }
+
+    // the last checkpoint at or before tarOffset
+    Checkpoint findCheckpoint(long tarOffset) {
+        int low = 0;
+        int high = checkpoints.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (checkpoints.get(mid).getOutputOffset() <= tarOffset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return checkpoints.get(low);
+    }
+
+    // Decodes the whole backup once, recording entries and, every spacing
+    // bytes of tar data, a checkpoint.
+    static BackupIndex build(BackupSource source, final int spacing) throws IOException {
+        final BackupHeader header = source.getHeader();
+        final List<Checkpoint> checkpoints = new ArrayList<>();
+        InputStream tarStream;
+        if (header.isCompressed()) {
+            tarStream = new RawInflater(source.getDecryptedStream(), true,
+                    new RawInflater.BlockListener() {
+                        private long next;
+
+                        @Override
+                        public void blockStart(RawInflater inflater) {
+                            long outputOffset = inflater.getOutputOffset();
+                            if (outputOffset < next) {
+                                return;
+                            }
+                            // the IV is filled in once the backup has been read
+                            long bitOffset = inflater.getBitOffset();
+                            long cipherOffset = header.getBodyOffset() + alignedBodyOffset(
+                                    header, bitOffset >>> 3);
+                            checkpoints.add(new Checkpoint(outputOffset, bitOffset,
+                                    cipherOffset, null, inflater.getWindow()));
+                            next = outputOffset + spacing;
+                        }
+                    });
+        } else {
+            tarStream = source.getDecryptedStream();
+        }
+
+        List<TarEntry> entries = new ArrayList<>();
+        TarReader tar = new TarReader(tarStream);
+        TarEntry entry;
+        while ((entry = tar.next()) != null) {
+            entries.add(entry);
+        }
+        // read up to the end of the stream, verifying the checksum if compressed
+        byte[] buf = new byte[8 * 1024];
+        while (tarStream.read(buf) >= 0) {
+        }
+        long tarLength = tar.getOffset();
+        if (tarStream instanceof RawInflater) {
+            tarLength = ((RawInflater) tarStream).getOutputOffset();
+        }
+
+        long backupLength = Files.size(Paths.get(source.getFilename()));
+        List<Checkpoint> withIvs = header.isEncrypted()
+                ? readIvs(source.getFilename(), header, checkpoints) : checkpoints;
+        return new BackupIndex(backupLength, header, Collections.unmodifiableList(entries),
+                Collections.unmodifiableList(withIvs), tarLength);
+    }
+
+    // where decryption has to start to get the body byte at offset
+    static long alignedBodyOffset(BackupHeader header, long offset) {
+        return header.isEncrypted() ? offset & ~(long) (AES_BLOCK_SIZE - 1) : offset;
+    }
+
+    private static List<Checkpoint> readIvs(String backupFilename, BackupHeader header,
+            List<Checkpoint> checkpoints) throws IOException {
+        List<Checkpoint> result = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(backupFilename),
+                StandardOpenOption.READ)) {
+            for (Checkpoint cp : checkpoints) {
+                byte[] iv = null;
+                if (cp.getCipherOffset() > header.getBodyOffset()) {
+                    iv = readBlock(channel, cp.getCipherOffset() - AES_BLOCK_SIZE);
+                }
+                result.add(new Checkpoint(cp.getOutputOffset(), cp.getBitOffset(),
+                        cp.getCipherOffset(), iv, cp.getWindow()));
+            }
+        }
+        return result;
+    }
+
+    static byte[] readBlock(FileChannel channel, long position) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(AES_BLOCK_SIZE);
+        while (block.hasRemaining()) {
+            if (channel.read(block, position + block.position()) < 0) {
+                throw new IOException("Unexpected end of backup at offset " + position);
+            }
+        }
+        return block.array();
+    }
+
+    void write(String indexFilename) throws IOException {
+        try (OutputStream file = new FileOutputStream(indexFilename)) {
+            file.write(MAGIC);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(file, new Deflater(Deflater.BEST_SPEED))));
+            out.writeLong(backupLength);
+            writeHeader(out, header);
+            out.writeLong(tarLength);
+
+            out.writeInt(entries.size());
+            for (TarEntry entry : entries) {
+                out.writeUTF(entry.getName());
+                out.writeChar(entry.getType());
+                out.writeLong(entry.getSize());
+                out.writeInt(entry.getMode());
+                out.writeLong(entry.getModTime());
+                out.writeUTF(entry.getLinkName());
+                out.writeLong(entry.getHeaderOffset());
+                out.writeLong(entry.getDataOffset());
+            }
+
+            out.writeInt(checkpoints.size());
+            for (Checkpoint cp : checkpoints) {
+                out.writeLong(cp.getOutputOffset());
+                out.writeLong(cp.getBitOffset());
+                out.writeLong(cp.getCipherOffset());
+                writeBytes(out, cp.getIv());
+                writeBytes(out, cp.getWindow());
+            }
+            out.close();
+        }
+    }
+
+    static BackupIndex read(String indexFilename) throws IOException {
+        try (InputStream file = new FileInputStream(indexFilename)) {
+            byte[] magic = new byte[MAGIC.length];
+            new DataInputStream(file).readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a backup index: " + indexFilename);
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(file)));
+            long backupLength = in.readLong();
+            BackupHeader header = new BackupHeader(in.readInt(), in.readBoolean(),
+                    in.readUTF(), readBytes(in), readBytes(in), in.readInt(),
+                    readBytes(in), readBytes(in), in.readLong());
+            long tarLength = in.readLong();
+
+            int entryCount = in.readInt();
+            List<TarEntry> entries = new ArrayList<>(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                entries.add(new TarEntry(in.readUTF(), in.readChar(), in.readLong(),
+                        in.readInt(), in.readLong(), in.readUTF(), in.readLong(),
+                        in.readLong()));
+            }
+
+            int checkpointCount = in.readInt();
+            List<Checkpoint> checkpoints = new ArrayList<>(checkpointCount);
+            for (int i = 0; i < checkpointCount; i++) {
+                checkpoints.add(new Checkpoint(in.readLong(), in.readLong(), in.readLong(),
+                        readBytes(in), readBytes(in)));
+            }
+            return new BackupIndex(backupLength, header,
+                    Collections.unmodifiableList(entries),
+                    Collections.unmodifiableList(checkpoints), tarLength);
+        }
+    }
+
+    // everything but the magic and the body, read back by read()
+    static void writeHeader(DataOutputStream out, BackupHeader header) throws IOException {
+        out.writeInt(header.getVersion());
+        out.writeBoolean(header.isCompressed());
+        out.writeUTF(header.getEncryptionAlgorithm());
+        writeBytes(out, header.getUserSalt());
+        writeBytes(out, header.getChecksumSalt());
+        out.writeInt(header.getRounds());
+        writeBytes(out, header.getUserIv());
+        writeBytes(out, header.getMasterKeyBlob());
+        out.writeLong(header.getBodyOffset());
+    }
+
+    // null is written as length -1
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,73 @@
+package org.nick.abe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+
+// Reads a backup from any stream and hands out the tar inside it as a
+// stream, for use as a library. Unlike the AndroidBackup methods nothing is
+// printed, there is no password prompt and errors are thrown as they are.
+//
+//     try (BackupReader reader = BackupReader.open(in, password)) {
+//         BackupHeader header = reader.getHeader();
+//         InputStream tar = reader.getInputStream();
+//         ...
+//     }
+public class BackupReader implements Closeable {
+
+    private final BackupSource source;
+    private final InputStream tarStream;
+
+    private BackupReader(BackupSource source) {
+        this.source = source;
+        this.tarStream = source.openTarStream();
+    }
+
+    public static BackupReader open(InputStream in, String password)
+            throws IOException, GeneralSecurityException {
+        return open(in, password, new ExtractOptions(), new byte[HeaderParser.BUFFER_SIZE]);
+    }
+
+    public static BackupReader open(ReadableByteChannel in, String password)
+            throws IOException, GeneralSecurityException {
+        return open(Channels.newInputStream(in), password);
+    }
+
+    // Of the options, the decryption threads or pool and the key cache
+    // apply. headerBuffer is used to read the header and whatever follows it
+    // in the same read; it has to hold the longest header line (the master
+    // key blob, a few hundred bytes).
+    public static BackupReader open(InputStream in, String password, ExtractOptions options,
+            byte[] headerBuffer) throws IOException, GeneralSecurityException {
+        BackupSource source = BackupSource.open(null, in, new HeaderParser(in, headerBuffer),
+                password, options, false);
+        return new BackupReader(source);
+    }
+
+    public BackupHeader getHeader() {
+        return source.getHeader();
+    }
+
+    // the decrypted and decompressed tar stream
+    public InputStream getInputStream() {
+        return tarStream;
+    }
+
+    public ReadableByteChannel getChannel() {
+        return Channels.newChannel(tarStream);
+    }
+
+    // compressed bytes consumed so far, 0 for uncompressed backups
+    public long getCompressedBytesRead() {
+        return source.getCompressedBytesRead();
+    }
+
+    // also closes the stream the backup is read from
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,544 @@
+package org.nick.abe;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// A long running process taking pack, unpack and verify jobs over a local
+// socket, so that JVM startup, key derivation, cipher and compression code
+// are warm for every job but the first few, which the server runs itself
+// before accepting any.
+//
+// One job per connection. The client sends a line like those of a batch
+// manifest, <mode> <input> <output> [password], with mode pack, pack-kk,
+// unpack or verify (output being where the SHA-256 manifest goes), or just
+// "stats". Inputs and outputs are files of the server, or - for the
+// connection: an input follows the line, up to the end of what the client
+// sends; an output comes back in frames of a 4 byte big-endian length and
+// that many bytes, ended by an empty frame. Last comes a status line, "OK
+// <bytes in> <bytes out> <milliseconds>" or "ERROR <message>".
+//
+// Anyone on the machine can connect to a TCP port, so there inputs and
+// outputs can only be the connection. Files are only for the Unix domain
+// socket, which is created in a directory accessible to its owner only.
+//
+// Jobs run on virtual threads where the runtime has them (Java 21), on a
+// fixed pool otherwise.
+class BackupServer {
+
+    static final int WARM_UP_ROUNDS = 10;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_SAMPLES = 10000;
+    private static final String WARM_UP_PASSWORD = "warm-up";
+    private static final String SOCKET_NAME = "socket";
+
+    private final ExtractOptions extractOptions;
+    private final PackOptions packOptions;
+    private final int threads;
+
+    // latencies of the last MAX_SAMPLES jobs, a ring
+    private final long[] samples = new long[MAX_SAMPLES];
+    private long jobs;
+    private long failed;
+    private boolean virtualThreads;
+    // whether jobs may name files of the server
+    private boolean filesAllowed;
+
+    BackupServer(ExtractOptions extractOptions, PackOptions packOptions, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        this.extractOptions = extractOptions;
+        this.packOptions = packOptions;
+        this.threads = threads;
+    }
+
+    // A TCP port on the loopback interface if address is a number, else a
+    // directory to create the Unix domain socket in. Runs until the process
+    // is stopped.
+    void serve(String address) throws IOException {
+        long start = System.nanoTime();
+        warmUp();
+        System.err.printf("Warmed up in %.0f ms.\n", (System.nanoTime() - start) / 1e6);
+
+        ServerSocketChannel server;
+        if (address.matches("\\d+")) {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(address)));
+        } else {
+            server = openUnix(Paths.get(address));
+            filesAllowed = true;
+        }
+        ExecutorService executor = newJobExecutor();
+        System.err.printf("Listening on %s, jobs on %s.\n", server.getLocalAddress(),
+                virtualThreads ? "virtual threads" : threads + " threads");
+        try {
+            while (true) {
+                final SocketChannel client = server.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdownNow();
+            server.close();
+        }
+    }
+
+    // Java 16 has Unix domain sockets, looked up by reflection so that the
+    // rest still runs on Java 8. The socket is created in directory, which
+    // only its owner can enter, so no one else can connect to it at any
+    // time. If directory exists it has to be such a directory already.
+    private static ServerSocketChannel openUnix(Path directory) throws IOException {
+        final boolean created = createPrivateDirectory(directory);
+        final Path path = directory.resolve(SOCKET_NAME);
+        ServerSocketChannel server;
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            SocketAddress address = (SocketAddress) Class.forName(
+                    "java.net.UnixDomainSocketAddress").getMethod("of", Path.class)
+                    .invoke(null, path);
+            if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                // left over by a server that was killed, unless that one is
+                // still running
+                boolean listening;
+                try (SocketChannel other = (SocketChannel) SocketChannel.class
+                        .getMethod("open", ProtocolFamily.class).invoke(null, unix)) {
+                    listening = other.connect(address);
+                } catch (IOException e) {
+                    listening = false;
+                }
+                if (listening) {
+                    throw new IOException("A server is already listening on " + path);
+                }
+                Files.delete(path);
+            }
+            server = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, unix);
+            server.bind(address);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            if (e instanceof InvocationTargetException
+                    && e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new UnsupportedOperationException(
+                    "Unix domain sockets need Java 16 or later, give a port instead", e);
+        }
+        final Path socketDirectory = directory;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Files.deleteIfExists(path);
+                    if (created) {
+                        Files.deleteIfExists(socketDirectory);
+                    }
+                } catch (IOException e) {
+                    // going away anyway
+                }
+            }
+        });
+        return server;
+    }
+
+    // Creates directory with owner-only permissions, or checks that an
+    // existing one is a directory of ours with those. Returns whether it
+    // was created.
+    private static boolean createPrivateDirectory(Path directory) throws IOException {
+        boolean posix = directory.toAbsolutePath().getFileSystem()
+                .supportedFileAttributeViews().contains("posix");
+        if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            if (posix) {
+                Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectory(directory);
+            }
+            return true;
+        }
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(directory + " exists and is not a directory");
+        }
+        if (posix) {
+            String owner = Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS).getName();
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (!owner.equals(System.getProperty("user.name"))
+                    || !permissions.equals(PosixFilePermissions.fromString("rwx------"))) {
+                throw new IOException(directory
+                        + " has to be a directory of this user with permissions rwx------");
+            }
+        }
+        return false;
+    }
+
+    private ExecutorService newJobExecutor() {
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtualThreads = true;
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            // before Java 21, or a preview that isn't enabled
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        long start = System.nanoTime();
+        String request = null;
+        String status;
+        boolean ok = false;
+        OutputStream out = Channels.newOutputStream(client);
+        InputStream in = new BufferedInputStream(Channels.newInputStream(client), BUFFER_SIZE);
+        try {
+            request = readLine(in);
+            String[] fields = request.trim().split("\\s+");
+            if ("stats".equals(fields[0]) && fields.length == 1) {
+                status = "OK " + stats();
+            } else {
+                long[] bytes = runJob(fields, in, out);
+                status = String.format(Locale.ROOT, "OK %d %d %.2f", bytes[0], bytes[1],
+                        (System.nanoTime() - start) / 1e6);
+            }
+            ok = true;
+        } catch (Throwable t) {
+            status = "ERROR " + String.valueOf(t).replace('\n', ' ');
+        }
+        try {
+            out.write((status + "\n").getBytes(StandardCharsets.UTF_8));
+            // A failed job may leave input the client is still sending.
+            // Closing with that unread would reset the connection, and the
+            // client could lose the status line, so the output is ended and
+            // the rest of the input read first.
+            client.shutdownOutput();
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (in.read(buf) >= 0) {
+                // discarded
+            }
+        } catch (IOException e) {
+            // the client is gone
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+        if (request != null && !"stats".equals(request.trim())) {
+            long nanos = System.nanoTime() - start;
+            record(nanos, ok);
+            // without the password
+            String[] fields = request.trim().split("\\s+");
+            String job = fields.length >= 3 ? fields[0] + " " + fields[1] + " " + fields[2]
+                    : fields[0];
+            System.err.printf("%-5s %8.2f ms  %s%s\n", ok ? "OK" : "FAIL", nanos / 1e6, job,
+                    ok ? "" : ": " + status.substring("ERROR ".length()));
+        }
+    }
+
+    // Runs the job, leaving the socket open for the status line. If the
+    // output is the socket, its frames are ended even if the job fails.
+    // Returns the bytes in and out.
+    private long[] runJob(String[] fields, InputStream socketIn, OutputStream socketOut)
+            throws Exception {
+        if (fields.length < 3 || fields.length > 4) {
+            throw new IllegalArgumentException("expected <mode> <input> <output> [password]");
+        }
+        String mode = fields[0];
+        if (!"pack".equals(mode) && !"pack-kk".equals(mode) && !"unpack".equals(mode)
+                && !"verify".equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        if (!filesAllowed && (!"-".equals(fields[1]) || !"-".equals(fields[2]))) {
+            throw new IllegalArgumentException(
+                    "Only - for input and output over TCP, files need a Unix domain socket");
+        }
+        String password = fields.length > 3 ? fields[3] : null;
+        FramedOutputStream framed = "-".equals(fields[2])
+                ? new FramedOutputStream(socketOut) : null;
+        CountingInputStream in = null;
+        try {
+            in = "-".equals(fields[1]) ? new CountingInputStream(socketIn, false)
+                    : new CountingInputStream(new FileInputStream(fields[1]), true);
+            CountingOutputStream out = new CountingOutputStream(framed != null ? framed
+                    : new FileOutputStream(fields[2]));
+            try {
+                if ("pack".equals(mode) || "pack-kk".equals(mode)) {
+                    pack(in, out, password, "pack-kk".equals(mode), packOptions);
+                } else if ("unpack".equals(mode)) {
+                    unpack(in, out, password, extractOptions);
+                } else {
+                    verify(in, out, password, extractOptions);
+                }
+            } finally {
+                out.close();
+            }
+            return new long[] { in.count, out.getBytes() };
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            if (framed != null) {
+                try {
+                    framed.close();
+                } catch (IOException e) {
+                    // the client is gone, the status line will fail too
+                }
+            }
+        }
+    }
+
+    static void pack(InputStream tar, OutputStream out, String password, boolean isKitKat,
+            PackOptions options) throws Exception {
+        try (BackupWriter writer = BackupWriter.open(out, password, isKitKat, options)) {
+            copy(tar, writer);
+            writer.finish();
+        }
+    }
+
+    static void unpack(InputStream backup, OutputStream out, String password,
+            ExtractOptions options) throws Exception {
+        try (BackupReader reader = BackupReader.open(backup, password, options,
+                new byte[HeaderParser.BUFFER_SIZE])) {
+            copy(reader.getInputStream(), out);
+        }
+    }
+
+    // writes the SHA-256 manifest of the backup
+    static void verify(InputStream backup, OutputStream out, String password,
+            ExtractOptions options) throws Exception {
+        try (BackupReader reader = BackupReader.open(backup, password, options,
+                new byte[HeaderParser.BUFFER_SIZE])) {
+            BackupVerifier verifier = new BackupVerifier(options.getDigestThreads());
+            verifier.verify(reader.getInputStream());
+            StringBuilder manifest = new StringBuilder();
+            for (BackupVerifier.Digest digest : verifier.getDigests()) {
+                manifest.append(digest).append('\n');
+            }
+            out.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Packs, unpacks and verifies a small backup with text and random data
+    // until key derivation, the ciphers, deflate and inflate and the tar
+    // code have been compiled.
+    static void warmUp() throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(tar);
+        byte[] text = new byte[256 * 1024];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ("abcdefghij klmnopqrstuvwxyz\n".charAt(i % 28));
+        }
+        byte[] noise = new byte[256 * 1024];
+        new Random(0).nextBytes(noise);
+        writer.putEntry("apps/warm.up/_manifest", TarEntry.TYPE_FILE, text.length / 64,
+                0600, 0, null);
+        writer.write(text, 0, text.length / 64);
+        writer.putEntry("apps/warm.up/f/text", TarEntry.TYPE_FILE, text.length, 0600, 0, null);
+        writer.write(text, 0, text.length);
+        writer.putEntry("apps/warm.up/f/noise", TarEntry.TYPE_FILE, noise.length, 0600, 0,
+                null);
+        writer.write(noise, 0, noise.length);
+        writer.finish();
+        byte[] tarBytes = tar.toByteArray();
+
+        ExtractOptions extractOptions = new ExtractOptions();
+        try {
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                ByteArrayOutputStream backup = new ByteArrayOutputStream();
+                pack(new ByteArrayInputStream(tarBytes), backup, WARM_UP_PASSWORD, i % 2 == 0,
+                        new PackOptions());
+                ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+                unpack(new ByteArrayInputStream(backup.toByteArray()), unpacked,
+                        WARM_UP_PASSWORD, extractOptions);
+                if (!Arrays.equals(unpacked.toByteArray(), tarBytes)) {
+                    throw new IllegalStateException("Warm-up backup didn't unpack to its tar");
+                }
+                verify(new ByteArrayInputStream(backup.toByteArray()),
+                        new ByteArrayOutputStream(), WARM_UP_PASSWORD, extractOptions);
+            }
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized void record(long nanos, boolean ok) {
+        samples[(int) (jobs % MAX_SAMPLES)] = nanos;
+        jobs++;
+        if (!ok) {
+            failed++;
+        }
+    }
+
+    // jobs so far and latency percentiles of the last MAX_SAMPLES
+    synchronized String stats() {
+        int n = (int) Math.min(jobs, MAX_SAMPLES);
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "jobs %d failed %d p50 %.2f p90 %.2f p99 %.2f max %.2f ms", jobs,
+                failed, percentile(sorted, 50), percentile(sorted, 90),
+                percentile(sorted, 99), n == 0 ? 0 : sorted[n - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, rank)] / 1e6;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new ClosedChannelException();
+            }
+            if (line.size() == MAX_LINE_LENGTH) {
+                throw new IOException("Request line too long");
+            }
+            line.write(b);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+    }
+
+    // buffers what is written into frames, close() ends them without
+    // closing the socket
+    private static class FramedOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int count;
+        private boolean closed;
+
+        FramedOutputStream(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                flush();
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    flush();
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                out.writeInt(count);
+                out.write(buf, 0, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                flush();
+                out.writeInt(0);
+                out.flush();
+            }
+        }
+    }
+
+    private static class CountingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final boolean closeIn;
+        long count;
+
+        // the socket stays open unless closeIn is set
+        CountingInputStream(InputStream in, boolean closeIn) {
+            this.in = in;
+            this.closeIn = closeIn;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closeIn) {
+                in.close();
+            }
+        }
+    }
+}
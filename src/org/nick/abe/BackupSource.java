@@ -0,0 +1,243 @@
+package org.nick.abe;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Cipher;
+
+// A backup file opened for reading: the header has been parsed, the master
+// key unwrapped and the body set up for decryption. Shared by all the modes
+// that decode the body.
+class BackupSource implements Closeable {
+
+    private final String filename;
+    private final InputStream rawInStream;
+    private final HeaderParser headerParser;
+    private final BackupHeader header;
+    private final MasterKey masterKey;
+    private final InputStream bodyStream;
+    private final InputStream decryptedStream;
+    private final Cipher bodyCipher;
+    private final ForkJoinPool decryptPool;
+    private final boolean ownPool;
+    private Inflater inflater;
+
+    // only with a metrics listener
+    private boolean metered;
+    private MeteredInputStream readMeter;
+    private MeteredInputStream decryptMeter;
+    private MeteredInputStream inflateMeter;
+    private long headerNanos;
+    private long keyDerivationNanos;
+
+    private BackupSource(String filename, InputStream rawInStream,
+            HeaderParser headerParser, BackupHeader header, MasterKey masterKey,
+            InputStream bodyStream, InputStream decryptedStream, Cipher bodyCipher,
+            ForkJoinPool decryptPool, boolean ownPool) {
+        this.filename = filename;
+        this.rawInStream = rawInStream;
+        this.headerParser = headerParser;
+        this.header = header;
+        this.masterKey = masterKey;
+        this.bodyStream = bodyStream;
+        this.decryptedStream = decryptedStream;
+        this.bodyCipher = bodyCipher;
+        this.decryptPool = decryptPool;
+        this.ownPool = ownPool;
+    }
+
+    static BackupSource open(String backupFilename, String password,
+            ExtractOptions options) throws IOException, GeneralSecurityException {
+        FileInputStream rawInStream = AndroidBackup.getInputStream(backupFilename);
+        try {
+            // To prevent the NumberFormatException when trying to figure out the backup version
+            if (!"-".equals(backupFilename) && Files.size(Paths.get(backupFilename)) == 0) {
+                throw new IllegalStateException("File too small in size");
+            }
+            return open(backupFilename, rawInStream, new HeaderParser(rawInStream), password,
+                    options, true);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            rawInStream.close();
+            throw e;
+        }
+    }
+
+    // Reads the header from headerParser and sets up the body of in.
+    // Unless interactive, nothing is printed and a missing password is an
+    // error instead of a prompt. backupFilename is null for streams.
+    static BackupSource open(String backupFilename, InputStream rawInStream,
+            HeaderParser headerParser, String password, ExtractOptions options,
+            boolean interactive) throws IOException, GeneralSecurityException {
+        // with the password at hand, the user key is derived while the
+        // header is still being read, unless the key cache may make
+        // that unnecessary
+        KeyCache keyCache = options.getKeyCache();
+        KeyDerivation.UserKeyPrefetch prefetch = password == null || "".equals(password)
+                || keyCache != null ? null : new KeyDerivation.UserKeyPrefetch(password);
+        boolean metered = options.getMetricsListener() != null;
+        long start = System.nanoTime();
+        BackupHeader header = headerParser.parse(prefetch);
+        long headerNanos = System.nanoTime() - start;
+        InputStream bodyStream = headerParser.getBodyStream();
+        MeteredInputStream readMeter = null;
+        if (metered) {
+            bodyStream = readMeter = new MeteredInputStream(bodyStream);
+        }
+        BackupSource source;
+        long keyDerivationNanos = 0;
+        MeteredInputStream decryptMeter = null;
+        if (!header.isEncrypted()) {
+            source = new BackupSource(backupFilename, rawInStream, headerParser, header,
+                    null, bodyStream, bodyStream, null, null, false);
+        } else {
+            if (interactive) {
+                password = AndroidBackup.requirePassword(password);
+            } else if (password == null || "".equals(password)) {
+                throw new IllegalArgumentException(
+                        "Backup encrypted but password not specified");
+            }
+            start = System.nanoTime();
+            MasterKey masterKey = keyCache != null
+                    ? keyCache.unwrap(header, password, null, interactive)
+                    : AndroidBackup.unwrapMasterKey(header, password,
+                            prefetch == null ? null : prefetch.getUserKey(), interactive);
+            keyDerivationNanos = System.nanoTime() - start;
+            ForkJoinPool decryptPool = options.getDecryptPool();
+            boolean ownPool = false;
+            if (decryptPool == null && options.getDecryptThreads() > 1) {
+                decryptPool = new ForkJoinPool(options.getDecryptThreads());
+                ownPool = true;
+            }
+            InputStream decryptedStream;
+            Cipher c = null;
+            if (decryptPool != null) {
+                // CBC decryption parallelizes, see ParallelCbcInputStream
+                decryptedStream = new ParallelCbcInputStream(bodyStream, masterKey.getKey(),
+                        masterKey.getIv(), decryptPool);
+            } else {
+                c = masterKey.newDecryptCipher();
+                decryptedStream = new BulkCipherInputStream(bodyStream, c);
+            }
+            if (metered) {
+                decryptedStream = decryptMeter = new MeteredInputStream(decryptedStream);
+            }
+            source = new BackupSource(backupFilename, rawInStream, headerParser, header,
+                    masterKey, bodyStream, decryptedStream, c, decryptPool, ownPool);
+        }
+        source.metered = metered;
+        source.readMeter = readMeter;
+        source.decryptMeter = decryptMeter;
+        source.headerNanos = headerNanos;
+        source.keyDerivationNanos = keyDerivationNanos;
+        return source;
+    }
+
+    // null if opened from a stream
+    String getFilename() {
+        return filename;
+    }
+
+    BackupHeader getHeader() {
+        return header;
+    }
+
+    // null for unencrypted backups
+    MasterKey getMasterKey() {
+        return masterKey;
+    }
+
+    HeaderParser getHeaderParser() {
+        return headerParser;
+    }
+
+    // the backup file itself, positioned somewhere after the header. Only
+    // for sources opened by filename.
+    FileInputStream getRawStream() {
+        return (FileInputStream) rawInStream;
+    }
+
+    // the body as stored, still encrypted
+    InputStream getBodyStream() {
+        return bodyStream;
+    }
+
+    // the cipher decrypting the body, if that is left to the caller and not
+    // already done in parallel by getDecryptedStream()
+    Cipher getBodyCipher() {
+        return bodyCipher;
+    }
+
+    // the body after decryption, still compressed
+    InputStream getDecryptedStream() {
+        return decryptedStream;
+    }
+
+    // the decoded tar stream
+    InputStream openTarStream() {
+        if (!header.isCompressed()) {
+            return decryptedStream;
+        }
+        inflater = new Inflater();
+        InputStream tarStream = new InflaterInputStream(decryptedStream, inflater);
+        if (metered) {
+            tarStream = inflateMeter = new MeteredInputStream(tarStream);
+        }
+        return tarStream;
+    }
+
+    // compressed bytes consumed so far by openTarStream(), if compressed
+    long getCompressedBytesRead() {
+        return inflater == null ? 0 : inflater.getBytesRead();
+    }
+
+    // time spent on the header and the master key
+    void addOpenMetrics(ExtractMetrics metrics) {
+        metrics.setHeaderNanos(headerNanos);
+        metrics.setKeyDerivationNanos(keyDerivationNanos);
+        if (readMeter != null) {
+            metrics.setBodyBytes(readMeter.getBytes());
+        }
+    }
+
+    // The stages of openTarStream() that were used. Each one reads from the
+    // one before on the same thread, so its own time is what is left after
+    // taking away the time of the stage before.
+    void addStreamMetrics(ExtractMetrics metrics) {
+        addOpenMetrics(metrics);
+        long below = 0;
+        for (MeteredInputStream meter : new MeteredInputStream[] { readMeter, decryptMeter,
+                inflateMeter }) {
+            if (meter == null) {
+                continue;
+            }
+            String name = meter == readMeter ? "read"
+                    : meter == decryptMeter ? "decrypt" : "inflate";
+            metrics.addStage(name, meter.getBytes(), meter.getNanos() - below);
+            metrics.setTarBytes(meter.getBytes());
+            below = meter.getNanos();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            decryptedStream.close();
+        } finally {
+            rawInStream.close();
+            if (inflater != null) {
+                inflater.end();
+            }
+            if (ownPool) {
+                decryptPool.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.nick.abe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Reads the tar stream of a backup to the end without writing it anywhere:
+// TarReader checks the header checksums and the end-of-archive marker,
+// reading on to the end of the stream checks what's below (the Adler-32
+// of the zlib stream, the padding of the cipher), and the data of each
+// file goes through SHA-256.
+//
+// Like DirectoryExtractor, the calling thread only decodes and copies
+// entry data into a fixed number of buffers; the digests are computed on a
+// pool. Chunks of one entry are digested in order by whichever thread gets
+// to them first, so several large files are hashed at the same time.
+class BackupVerifier {
+
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final int CHUNKS_IN_FLIGHT = 64;
+
+    // a file of the tar with its SHA-256, once computed
+    static class Digest {
+
+        private final String name;
+        private final long size;
+        private volatile String sha256;
+
+        Digest(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        String getSha256() {
+            return sha256;
+        }
+
+        // the format of sha256sum, to check an extracted backup with
+        // sha256sum -c
+        @Override
+        public String toString() {
+            return sha256 + "  " + name;
+        }
+    }
+
+    private final ExecutorService digesters;
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<Digest> digests = new ArrayList<>();
+
+    private long entries;
+    private long bytes;
+    private long tarLength;
+    // negated offset of the first while still reading
+    private long ignoredBytes;
+
+    BackupVerifier(int threads) {
+        this.digesters = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < CHUNKS_IN_FLIGHT; i++) {
+            free.add(new byte[CHUNK_SIZE]);
+        }
+    }
+
+    long getEntryCount() {
+        return entries;
+    }
+
+    long getByteCount() {
+        return bytes;
+    }
+
+    long getTarLength() {
+        return tarLength;
+    }
+
+    // data after the end-of-archive marker that isn't zeros, from the first
+    // non-zero byte on
+    long getIgnoredBytes() {
+        return ignoredBytes;
+    }
+
+    // the files of the tar in order
+    List<Digest> getDigests() {
+        return digests;
+    }
+
+    void verify(InputStream tarStream) throws IOException {
+        try {
+            TarReader tar = new TarReader(tarStream);
+            TarEntry entry;
+            while ((entry = tar.next()) != null) {
+                checkFailure();
+                entries++;
+                if (entry.isFile()) {
+                    digestFile(tar, entry);
+                }
+            }
+            if (!tar.isEndOfArchive()) {
+                throw new IOException("No end-of-archive marker at offset " + tar.getOffset());
+            }
+            tarLength = tar.getOffset();
+            // the end of the stream has to be reached for its checksum to be
+            // verified. Anything but zeros after the marker is ignored by
+            // tar and restore alike, like a second archive appended.
+            byte[] rest = free.take();
+            int n;
+            while ((n = tarStream.read(rest)) >= 0) {
+                for (int i = 0; i < n && ignoredBytes == 0; i++) {
+                    if (rest[i] != 0) {
+                        ignoredBytes = -(tarLength + i);
+                    }
+                }
+                tarLength += n;
+            }
+            if (ignoredBytes < 0) {
+                ignoredBytes = tarLength + ignoredBytes;
+            }
+            free.add(rest);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying", e);
+        } finally {
+            digesters.shutdown();
+        }
+        try {
+            while (!digesters.awaitTermination(1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            digesters.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying", e);
+        }
+        checkFailure();
+    }
+
+    private void digestFile(TarReader tar, TarEntry entry)
+            throws IOException, InterruptedException {
+        Digest digest = new Digest(entry.getName(), entry.getSize());
+        digests.add(digest);
+        EntryDigester digester = new EntryDigester(digest);
+        long position = 0;
+        do {
+            byte[] chunk = free.take();
+            int length = 0;
+            int n;
+            while (length < chunk.length
+                    && (n = tar.read(chunk, length, chunk.length - length)) > 0) {
+                length += n;
+            }
+            position += length;
+            digester.add(chunk, length, position == entry.getSize());
+        } while (position < entry.getSize());
+        bytes += entry.getSize();
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            digesters.shutdownNow();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            throw new IOException("Digest failed", t);
+        }
+    }
+
+    private static class Chunk {
+
+        final byte[] data;
+        final int length;
+        final boolean last;
+
+        Chunk(byte[] data, int length, boolean last) {
+            this.data = data;
+            this.length = length;
+            this.last = last;
+        }
+    }
+
+    // The chunks of one entry, digested in order by at most one thread at
+    // a time: whoever adds the first pending chunk schedules a drain.
+    private class EntryDigester implements Runnable {
+
+        private final Digest digest;
+        private final MessageDigest sha256;
+        private final ConcurrentLinkedQueue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        EntryDigester(Digest digest) {
+            this.digest = digest;
+            try {
+                this.sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void add(byte[] chunk, int length, boolean last) {
+            chunks.add(new Chunk(chunk, length, last));
+            if (pending.getAndIncrement() == 0) {
+                digesters.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    Chunk chunk = chunks.poll();
+                    sha256.update(chunk.data, 0, chunk.length);
+                    free.add(chunk.data);
+                    if (chunk.last) {
+                        digest.sha256 = AndroidBackup.toHex(sha256.digest())
+                                .toLowerCase(Locale.ROOT);
+                    }
+                } while (pending.decrementAndGet() > 0);
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.nick.abe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Writes a backup to any stream: the header when opened, then the tar data
+// written to it, compressed and encrypted as asked. Like BackupReader it
+// prints nothing. finish() completes the backup without closing the target
+// stream, close() completes it and closes the target.
+public class BackupWriter extends OutputStream {
+
+    private final OutputStream target;
+    private final OutputStream body;
+    private final ForkJoinPool ownPool;
+    private boolean finished;
+
+    private BackupWriter(OutputStream target, OutputStream body, ForkJoinPool ownPool) {
+        this.target = target;
+        this.body = body;
+        this.ownPool = ownPool;
+    }
+
+    public static BackupWriter open(OutputStream out, String password, boolean isKitKat)
+            throws IOException, GeneralSecurityException {
+        return open(out, password, isKitKat, new PackOptions());
+    }
+
+    // password null or empty for an unencrypted backup. Of the options, the
+    // compression switch and either the deflate threads or pool or the
+    // adaptive levels apply.
+    public static BackupWriter open(OutputStream out, String password, boolean isKitKat,
+            PackOptions options) throws IOException, GeneralSecurityException {
+        boolean encrypting = password != null && !"".equals(password);
+        boolean compressing = options.isCompressed();
+
+        StringBuilder headerbuf = new StringBuilder(1024);
+        headerbuf.append(AndroidBackup.BACKUP_FILE_HEADER_MAGIC);
+        // integer, no trailing \n
+        headerbuf.append(isKitKat ? AndroidBackup.BACKUP_FILE_V2 : AndroidBackup.BACKUP_FILE_V1);
+        headerbuf.append(compressing ? "\n1\n" : "\n0\n");
+
+        // the streams below finish their data on close(), which must not
+        // close out before finish() is done with it
+        OutputStream body = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.flush();
+            }
+        };
+
+        // Set up the encryption stage if appropriate, and emit the correct
+        // header
+        if (encrypting) {
+            body = AndroidBackup.emitAesBackupHeader(headerbuf, body, password, isKitKat);
+        } else {
+            headerbuf.append("none\n");
+        }
+        out.write(headerbuf.toString().getBytes(StandardCharsets.UTF_8));
+
+        // Set up the compression stage feeding into the encryption stage
+        // (if any)
+        ForkJoinPool ownPool = null;
+        if (compressing && options.isAdaptive()) {
+            body = new AdaptiveDeflaterOutputStream(body, options.getTextLevel(),
+                    options.getFastLevel(), options.getEntropyThreshold());
+        } else if (compressing) {
+            ForkJoinPool pool = options.getDeflatePool();
+            if (pool == null && options.getDeflateThreads() > 1) {
+                pool = ownPool = new ForkJoinPool(options.getDeflateThreads());
+            }
+            if (pool != null) {
+                // pigz-style, see ParallelDeflaterOutputStream
+                body = new ParallelDeflaterOutputStream(body, Deflater.BEST_COMPRESSION, pool);
+            } else {
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                body = new DeflaterOutputStream(body, deflater, true) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+            }
+        }
+        return new BackupWriter(out, body, ownPool);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        body.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        body.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        body.flush();
+    }
+
+    // writes the end of the compressed and encrypted data, the target stream
+    // stays open
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            body.close();
+        } finally {
+            if (ownPool != null) {
+                ownPool.shutdownNow();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.nick.abe;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs many packs and unpacks in one JVM on a bounded pool, so that JVM
+// startup, provider registration and JIT warm-up are paid once. A failing
+// job is reported and does not stop the others.
+//
+// What a job prints to System.err, like --stats, is kept apart per job and
+// printed in one piece when the job is done, so that the output of jobs
+// running at the same time doesn't interleave. The summary at the end has
+// the throughput of each job.
+class BatchRunner {
+
+    static class Job {
+
+        final String mode;
+        final Path input;
+        final Path output;
+        final String password;
+
+        Job(String mode, Path input, Path output, String password) {
+            this.mode = mode;
+            this.input = input;
+            this.output = output;
+            this.password = password;
+        }
+    }
+
+    private static class Result {
+
+        final Job job;
+        final long bytes;
+        final long nanos;
+        final Throwable failure;
+        final String log;
+
+        Result(Job job, long bytes, long nanos, Throwable failure, String log) {
+            this.job = job;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.failure = failure;
+            this.log = log;
+        }
+    }
+
+    private final ExtractOptions extractOptions;
+    private final PackOptions packOptions;
+    private final int threads;
+
+    BatchRunner(ExtractOptions extractOptions, PackOptions packOptions, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        this.extractOptions = extractOptions;
+        this.packOptions = packOptions;
+        this.threads = threads;
+    }
+
+    // every .ab in directory is unpacked to a .tar in outDir, every .tar
+    // packed to an .ab
+    static List<Job> fromDirectory(Path directory, Path outDir, String password)
+            throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory)) {
+            for (Path file : dir) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (!Files.isRegularFile(file)) {
+                continue;
+            }
+            if (name.endsWith(".ab")) {
+                jobs.add(new Job("unpack", file, outDir.resolve(
+                        name.substring(0, name.length() - 3) + ".tar"), password));
+            } else if (name.endsWith(".tar")) {
+                jobs.add(new Job("pack", file, outDir.resolve(
+                        name.substring(0, name.length() - 4) + ".ab"), password));
+            }
+        }
+        return jobs;
+    }
+
+    // One job per line: <mode> <input> <output> [password], with mode one of
+    // pack, pack-kk, unpack and unpack-dir. Inputs are relative to the
+    // manifest, outputs to outDir. Empty lines and lines starting with # are
+    // skipped.
+    static List<Job> fromManifest(Path manifest, Path outDir, String password)
+            throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        Path base = manifest.toAbsolutePath().getParent();
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 3 || fields.length > 4 || !isMode(fields[0])) {
+                    throw new IllegalArgumentException(manifest + ":" + lineNumber
+                            + ": expected <mode> <input> <output> [password]");
+                }
+                jobs.add(new Job(fields[0], base.resolve(fields[1]), outDir.resolve(fields[2]),
+                        fields.length > 3 ? fields[3] : password));
+            }
+        }
+        return jobs;
+    }
+
+    private static boolean isMode(String mode) {
+        return "pack".equals(mode) || "pack-kk".equals(mode) || "unpack".equals(mode)
+                || "unpack-dir".equals(mode);
+    }
+
+    // runs all jobs and prints the summary, false if any of them failed
+    boolean run(List<Job> jobs) throws InterruptedException {
+        PrintStream stderr = System.err;
+        ThreadLocalOutputStream logs = new ThreadLocalOutputStream(stderr);
+        System.setErr(new PrintStream(logs, true));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Result> results = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Job job : jobs) {
+                futures.add(pool.submit(task(job, logs, stderr)));
+            }
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // task() catches everything, this is a bug
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            System.setErr(stderr);
+        }
+        long elapsed = System.nanoTime() - start;
+        return printSummary(results, elapsed);
+    }
+
+    private Callable<Result> task(final Job job, final ThreadLocalOutputStream logs,
+            final PrintStream stderr) {
+        return new Callable<Result>() {
+            @Override
+            public Result call() {
+                ByteArrayOutputStream log = logs.capture();
+                long start = System.nanoTime();
+                Throwable failure = null;
+                long bytes = 0;
+                try {
+                    bytes = Files.size(job.input);
+                    runJob(job);
+                } catch (Throwable t) {
+                    // AndroidBackup wraps everything in RuntimeException
+                    failure = t instanceof RuntimeException && t.getCause() != null
+                            ? t.getCause() : t;
+                } finally {
+                    logs.release();
+                }
+                Result result = new Result(job, bytes, System.nanoTime() - start, failure,
+                        new String(log.toByteArray(), StandardCharsets.UTF_8));
+                printLog(result, stderr);
+                return result;
+            }
+        };
+    }
+
+    private static void printLog(Result result, PrintStream stderr) {
+        if (result.log.isEmpty()) {
+            // the summary has the failure
+            return;
+        }
+        synchronized (stderr) {
+            stderr.printf("%s %s %s, its output was:\n%s", result.job.mode,
+                    result.job.input, result.failure == null ? "done" : "failed", result.log);
+            if (!result.log.endsWith("\n")) {
+                stderr.println();
+            }
+            stderr.flush();
+        }
+    }
+
+    private void runJob(Job job) throws IOException {
+        String input = job.input.toString();
+        String output = job.output.toString();
+        if (job.output.getParent() != null) {
+            Files.createDirectories(job.output.getParent());
+        }
+        if (job.mode.startsWith("unpack")) {
+            // asking on the console from several threads at once won't work
+            if ((job.password == null || job.password.isEmpty())
+                    && AndroidBackup.readHeader(input).isEncrypted()) {
+                throw new IllegalArgumentException("Backup encrypted but password not specified");
+            }
+            if ("unpack-dir".equals(job.mode)) {
+                AndroidBackup.extractToDirectory(input, output, job.password, extractOptions);
+            } else {
+                AndroidBackup.extractAsTar(input, output, job.password, extractOptions);
+            }
+        } else {
+            AndroidBackup.packTar(input, output, job.password, "pack-kk".equals(job.mode),
+                    packOptions);
+        }
+    }
+
+    private static boolean printSummary(List<Result> results, long elapsed) {
+        int failed = 0;
+        long totalBytes = 0;
+        for (Result result : results) {
+            double seconds = result.nanos / 1e9;
+            if (result.failure == null) {
+                totalBytes += result.bytes;
+                System.err.printf("OK    %-10s %10.1f MB %8.2f s %8.1f MB/s  %s\n",
+                        result.job.mode, result.bytes / 1e6, seconds,
+                        result.bytes / 1e6 / seconds, result.job.input);
+            } else {
+                failed++;
+                System.err.printf("FAIL  %-10s %10.1f MB %8.2f s %8s       %s: %s\n",
+                        result.job.mode, result.bytes / 1e6, seconds, "-", result.job.input,
+                        result.failure);
+            }
+        }
+        double seconds = elapsed / 1e9;
+        System.err.printf("%d jobs, %d failed, %.1f MB in %.2f s, %.1f MB/s\n",
+                results.size(), failed, totalBytes / 1e6, seconds,
+                totalBytes / 1e6 / seconds);
+        return failed == 0;
+    }
+
+    // System.err for the duration of a batch: what a job thread writes goes
+    // to its own buffer, anything else to the real stderr
+    private static class ThreadLocalOutputStream extends OutputStream {
+
+        private final OutputStream fallback;
+        private final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<>();
+
+        ThreadLocalOutputStream(OutputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        ByteArrayOutputStream capture() {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            buffers.set(buffer);
+            return buffer;
+        }
+
+        void release() {
+            buffers.remove();
+        }
+
+        private OutputStream target() {
+            ByteArrayOutputStream buffer = buffers.get();
+            return buffer != null ? buffer : fallback;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            fallback.flush();
+        }
+    }
+}
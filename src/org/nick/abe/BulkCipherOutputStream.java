@@ -0,0 +1,89 @@
+package org.nick.abe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+// Like CipherOutputStream, but collects what is written into a large buffer
+// and encrypts it with a single Cipher.update() call. Closing it writes the
+// final, padded block and closes out.
+class BulkCipherOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final Cipher cipher;
+    private final ByteBuffer input;
+    private final ByteBuffer output;
+    private boolean closed;
+
+    BulkCipherOutputStream(OutputStream out, Cipher cipher) {
+        this(out, cipher, BulkCipherInputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    BulkCipherOutputStream(OutputStream out, Cipher cipher, int bufferSize) {
+        this.out = out;
+        this.cipher = cipher;
+        this.input = ByteBuffer.allocate(bufferSize);
+        // a partial block held back from the last call, and the padding
+        this.output = ByteBuffer.allocate(bufferSize + 2 * BulkCipherInputStream.BLOCK_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!input.hasRemaining()) {
+            encrypt(false);
+        }
+        input.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!input.hasRemaining()) {
+                encrypt(false);
+            }
+            int n = Math.min(len, input.remaining());
+            input.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void encrypt(boolean last) throws IOException {
+        input.flip();
+        output.clear();
+        try {
+            if (last) {
+                cipher.doFinal(input, output);
+            } else {
+                cipher.update(input, output);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        input.compact();
+        out.write(output.array(), 0, output.position());
+    }
+
+    // only what has been encrypted so far, like CipherOutputStream
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            encrypt(true);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.nick.abe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Copies between channels without going through a heap buffer: between
+// files the copy is left to the OS with transferTo/transferFrom, anything
+// else (stdin, stdout, pipes) goes through one large direct buffer.
+final class ChannelCopy {
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private ChannelCopy() {
+    }
+
+    // copies in from position to its end
+    static long transferTo(FileChannel in, long position, WritableByteChannel out)
+            throws IOException {
+        long size = in.size();
+        long pos = position;
+        while (pos < size) {
+            long n = in.transferTo(pos, size - pos, out);
+            if (n <= 0) {
+                throw new IOException("transferTo() made no progress at offset " + pos);
+            }
+            pos += n;
+        }
+        return pos - position;
+    }
+
+    // copies all of in to out starting at position
+    static long transferFrom(FileChannel in, FileChannel out, long position)
+            throws IOException {
+        long size = in.size() - in.position();
+        long done = 0;
+        while (done < size) {
+            long n = out.transferFrom(in, position + done, size - done);
+            if (n <= 0) {
+                throw new IOException("transferFrom() made no progress at offset "
+                        + (position + done));
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    static long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long total = 0;
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                total += out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return total;
+    }
+}
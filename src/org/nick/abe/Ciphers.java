@@ -0,0 +1,138 @@
+package org.nick.abe;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+// The JCE provider of the AES/CBC ciphers for the backup body and the master
+// key blob. By default it is whatever comes first in the java.security
+// list, usually SunJCE, which uses AES-NI where the CPU has it. Bouncy
+// Castle is only used for PBKDF2 (see AndroidBackup.androidPBKDF2()) and
+// isn't registered, but can be picked here by name ("BC").
+public class Ciphers {
+
+    public static final String AUTO = "auto";
+
+    private static final String BENCHMARK_MECHANISM = "AES/CBC/NoPadding";
+    private static final int BENCHMARK_BUFFER_SIZE = 1024 * 1024;
+    private static final long BENCHMARK_NANOS = 200 * 1000 * 1000L;
+
+    // null for the default
+    private static volatile Provider provider;
+
+    private Ciphers() {
+    }
+
+    // name is a provider name, "auto" for the fastest in benchmark(), or
+    // null for the default
+    public static void setProvider(String name) {
+        if (name == null) {
+            provider = null;
+            return;
+        }
+        if (AUTO.equals(name)) {
+            String fastest = null;
+            double best = -1;
+            for (Map.Entry<String, double[]> result : benchmark().entrySet()) {
+                // unpacking is what is done most
+                if (result.getValue()[0] > best) {
+                    best = result.getValue()[0];
+                    fastest = result.getKey();
+                }
+            }
+            name = fastest;
+        }
+        for (Provider p : candidates()) {
+            if (p.getName().equals(name)) {
+                provider = p;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No AES/CBC provider named " + name);
+    }
+
+    // the name of the provider in use
+    public static String getProviderName() {
+        try {
+            return getInstance(AndroidBackup.ENCRYPTION_MECHANISM).getProvider().getName();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Cipher getInstance(String transformation) throws GeneralSecurityException {
+        Provider p = provider;
+        return p == null ? Cipher.getInstance(transformation)
+                : Cipher.getInstance(transformation, p);
+    }
+
+    // the registered providers with AES/CBC, and Bouncy Castle
+    static List<Provider> candidates() {
+        List<Provider> result = new ArrayList<>();
+        Provider[] registered = Security.getProviders("Cipher.AES");
+        boolean haveBc = false;
+        if (registered != null) {
+            for (Provider p : registered) {
+                result.add(p);
+                haveBc |= BouncyCastleProvider.PROVIDER_NAME.equals(p.getName());
+            }
+        }
+        if (!haveBc) {
+            result.add(new BouncyCastleProvider());
+        }
+        return result;
+    }
+
+    // Decrypt and encrypt MB/s of each provider, in large Cipher.update()
+    // calls like the body is processed in. Providers that fail to
+    // initialize (e.g. unsigned on JDKs that require it) are left out.
+    public static Map<String, double[]> benchmark() {
+        Map<String, double[]> result = new LinkedHashMap<>();
+        byte[] data = new byte[BENCHMARK_BUFFER_SIZE];
+        byte[] out = new byte[BENCHMARK_BUFFER_SIZE];
+        SecretKeySpec key = new SecretKeySpec(new byte[32], "AES");
+        IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+        for (Provider p : candidates()) {
+            try {
+                Cipher decrypt = Cipher.getInstance(BENCHMARK_MECHANISM, p);
+                decrypt.init(Cipher.DECRYPT_MODE, key, iv);
+                Cipher encrypt = Cipher.getInstance(BENCHMARK_MECHANISM, p);
+                encrypt.init(Cipher.ENCRYPT_MODE, key, iv);
+                result.put(p.getName(), new double[] { rate(decrypt, data, out),
+                        rate(encrypt, data, out) });
+            } catch (GeneralSecurityException | SecurityException e) {
+                // not usable here
+            }
+        }
+        return result;
+    }
+
+    private static double rate(Cipher c, byte[] data, byte[] out)
+            throws GeneralSecurityException {
+        // the first round lets the JIT compile (and intrinsify) the cipher
+        run(c, data, out);
+        return run(c, data, out);
+    }
+
+    private static double run(Cipher c, byte[] data, byte[] out)
+            throws GeneralSecurityException {
+        long bytes = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            bytes += c.update(data, 0, data.length, out);
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < BENCHMARK_NANOS);
+        return bytes / 1e6 / (elapsed / 1e9);
+    }
+}
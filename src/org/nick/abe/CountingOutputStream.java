@@ -0,0 +1,31 @@
+package org.nick.abe;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Counts the bytes written through it.
+class CountingOutputStream extends FilterOutputStream {
+
+    private long bytes;
+
+    CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        bytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytes += len;
+    }
+}
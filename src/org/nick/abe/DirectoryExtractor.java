@@ -0,0 +1,218 @@
+package org.nick.abe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Writes the entries of a tar stream straight into a directory tree. The
+// calling thread only parses the tar and copies entry data into buffers;
+// creating directories and files, writing and setting timestamps happens on
+// a pool of writers. The number of buffers is fixed, so a slow filesystem
+// eventually stalls the decoder instead of filling up memory.
+class DirectoryExtractor {
+
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final int CHUNKS_IN_FLIGHT = 128;
+
+    private final Path root;
+    private final ExecutorService writers;
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private long files;
+    private long bytes;
+
+    DirectoryExtractor(Path root, int threads) {
+        this.root = root.toAbsolutePath().normalize();
+        this.writers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < CHUNKS_IN_FLIGHT; i++) {
+            free.add(new byte[CHUNK_SIZE]);
+        }
+    }
+
+    long getFileCount() {
+        return files;
+    }
+
+    long getByteCount() {
+        return bytes;
+    }
+
+    void extract(TarReader tar) throws IOException {
+        try {
+            Files.createDirectories(root);
+            TarEntry entry;
+            while ((entry = tar.next()) != null) {
+                checkFailure();
+                final Path target = resolve(entry);
+                if (entry.isDirectory()) {
+                    writers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                Files.createDirectories(target);
+                            } catch (Throwable t) {
+                                failure.compareAndSet(null, t);
+                            }
+                        }
+                    });
+                } else if (entry.isFile()) {
+                    extractFile(tar, entry, target);
+                } else {
+                    System.err.printf("Skipping %s (unsupported type '%c')\n",
+                            entry.getName(), entry.getType());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting", e);
+        } finally {
+            writers.shutdown();
+        }
+        try {
+            while (!writers.awaitTermination(1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            writers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting", e);
+        }
+        checkFailure();
+    }
+
+    private void extractFile(TarReader tar, TarEntry entry, Path target)
+            throws IOException, InterruptedException {
+        OutputFile file = new OutputFile(target, entry.getModTime());
+        long position = 0;
+        do {
+            byte[] chunk = free.take();
+            int length = 0;
+            int n;
+            while (length < chunk.length
+                    && (n = tar.read(chunk, length, chunk.length - length)) > 0) {
+                length += n;
+            }
+            boolean last = position + length == entry.getSize();
+            writers.execute(new WriteTask(file, chunk, length, position, last));
+            position += length;
+        } while (position < entry.getSize());
+        files++;
+        bytes += entry.getSize();
+    }
+
+    // Tar entries come from the backup, so make sure none of them ends up
+    // outside of the target directory.
+    private Path resolve(TarEntry entry) throws IOException {
+        Path target = root.resolve(entry.getName()).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException("Refusing to extract " + entry.getName()
+                    + " outside of " + root);
+        }
+        return target;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            writers.shutdownNow();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            throw new IOException("Writing failed", t);
+        }
+    }
+
+    // A file being written by any number of chunk writes, opened by the
+    // first one to run and closed by the last one to finish.
+    private static class OutputFile {
+
+        private final Path path;
+        private final long modTime;
+        private final AtomicInteger pending = new AtomicInteger();
+        private FileChannel channel;
+        private boolean complete;
+
+        OutputFile(Path path, long modTime) {
+            this.path = path;
+            this.modTime = modTime;
+        }
+
+        synchronized FileChannel channel() throws IOException {
+            if (channel == null) {
+                Files.createDirectories(path.getParent());
+                channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        // called before a chunk is handed to a writer
+        void begin(boolean last) {
+            pending.incrementAndGet();
+            if (last) {
+                synchronized (this) {
+                    complete = true;
+                }
+            }
+        }
+
+        void end() throws IOException {
+            if (pending.decrementAndGet() == 0) {
+                synchronized (this) {
+                    if (!complete) {
+                        return;
+                    }
+                    channel().close();
+                }
+                Files.setLastModifiedTime(path, FileTime.from(modTime, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    private class WriteTask implements Runnable {
+
+        private final OutputFile file;
+        private final byte[] chunk;
+        private final int length;
+        private final long position;
+
+        WriteTask(OutputFile file, byte[] chunk, int length, long position, boolean last) {
+            this.file = file;
+            this.chunk = chunk;
+            this.length = length;
+            this.position = position;
+            file.begin(last);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (failure.get() == null) {
+                    FileChannel channel = file.channel();
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                    long pos = position;
+                    while (buffer.hasRemaining()) {
+                        pos += channel.write(buffer, pos);
+                    }
+                    file.end();
+                }
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                free.add(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package org.nick.abe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Writes the tar stream of a backup from a directory tree laid out like the
+// tar, as unpack-dir leaves it: apps/<package>/<domain>/... and anything
+// else, like shared/, after that. Each package starts with its _manifest,
+// followed by the domains in the order BackupManagerService writes them,
+// which restore relies on.
+//
+// Files up to PREFETCH_MAX_SIZE are read on a pool of readers a few entries
+// ahead of the one being written, so that opening and reading many small
+// files overlaps with compressing and encrypting. Larger ones are streamed
+// by the calling thread, where the OS read-ahead does the same.
+class DirectoryPacker {
+
+    static final int PREFETCH_MAX_SIZE = 1024 * 1024;
+    static final int PREFETCH_PER_THREAD = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the device protected d_* domains follow in the same order
+    private static final List<String> DOMAIN_ORDER = Arrays.asList("_manifest", "_meta",
+            "a", "obb", "r", "f", "db", "sp", "ef");
+
+    private static class Entry {
+
+        final Path path;
+        final String name;
+        final char type;
+        final long size;
+        final int mode;
+        final long modTime;
+        final String linkName;
+
+        Entry(Path path, String name, char type, long size, int mode, long modTime,
+                String linkName) {
+            this.path = path;
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.mode = mode;
+            this.modTime = modTime;
+            this.linkName = linkName;
+        }
+    }
+
+    private final Path root;
+    private final int threads;
+
+    private long files;
+    private long bytes;
+
+    DirectoryPacker(Path root, int threads) {
+        this.root = root;
+        this.threads = threads;
+    }
+
+    long getFileCount() {
+        return files;
+    }
+
+    long getByteCount() {
+        return bytes;
+    }
+
+    // writes the tar to out, which stays open
+    void pack(OutputStream out) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Not a directory: " + root);
+        }
+        List<Entry> entries = new ArrayList<>();
+        // apps/ first, whatever the other top-level entries sort as
+        Path apps = root.resolve("apps");
+        boolean hasApps = Files.isDirectory(apps, LinkOption.NOFOLLOW_LINKS);
+        if (hasApps) {
+            for (Path pkg : sorted(apps)) {
+                if (Files.isDirectory(pkg, LinkOption.NOFOLLOW_LINKS)) {
+                    addPackage(pkg, entries);
+                } else {
+                    add(pkg, entries);
+                }
+            }
+        }
+        for (Path child : sorted(root)) {
+            if (!hasApps || !"apps".equals(child.getFileName().toString())) {
+                add(child, entries);
+            }
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(threads);
+        List<Future<byte[]>> prefetched = new ArrayList<>(
+                Collections.<Future<byte[]>> nCopies(entries.size(), null));
+        int ahead = threads * PREFETCH_PER_THREAD;
+        int next = 0;
+        try {
+            TarWriter tar = new TarWriter(out);
+            byte[] buf = new byte[BUFFER_SIZE];
+            for (int i = 0; i < entries.size(); i++) {
+                for (; next < entries.size() && next <= i + ahead; next++) {
+                    Entry e = entries.get(next);
+                    if (e.type == TarEntry.TYPE_FILE && e.size <= PREFETCH_MAX_SIZE) {
+                        prefetched.set(next, readers.submit(read(e)));
+                    }
+                }
+
+                Entry entry = entries.get(i);
+                tar.putEntry(entry.name, entry.type, entry.size, entry.mode, entry.modTime,
+                        entry.linkName);
+                if (entry.type != TarEntry.TYPE_FILE) {
+                    continue;
+                }
+                Future<byte[]> data = prefetched.set(i, null);
+                if (data != null) {
+                    byte[] content = data.get();
+                    tar.write(content, 0, content.length);
+                } else {
+                    copy(entry, tar, buf);
+                }
+                files++;
+                bytes += entry.size;
+            }
+            tar.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while packing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Reading failed", cause);
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private void addPackage(Path pkg, List<Entry> entries) throws IOException {
+        List<Path> children = sorted(pkg);
+        Collections.sort(children, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                return Integer.compare(rank(a), rank(b));
+            }
+        });
+        // no entries for apps/ and apps/<package>/, the manifest comes first
+        for (Path child : children) {
+            add(child, entries);
+        }
+    }
+
+    // the position of a domain among the others, unknown ones last
+    private static int rank(Path domain) {
+        String name = domain.getFileName().toString();
+        int deviceProtected = 0;
+        if (name.startsWith("d_")) {
+            name = name.substring(2);
+            deviceProtected = DOMAIN_ORDER.size();
+        }
+        int index = DOMAIN_ORDER.indexOf(name);
+        return index < 0 ? 2 * DOMAIN_ORDER.size() : deviceProtected + index;
+    }
+
+    // path and everything below it
+    private void add(Path path, List<Entry> entries) throws IOException {
+        String name = root.relativize(path).toString().replace(path.getFileSystem()
+                .getSeparator(), "/");
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS);
+        int mode = mode(path, attrs);
+        long modTime = attrs.lastModifiedTime().toMillis() / 1000;
+        if (attrs.isDirectory()) {
+            entries.add(new Entry(path, name + "/", TarEntry.TYPE_DIRECTORY, 0, mode, modTime,
+                    null));
+            for (Path child : sorted(path)) {
+                add(child, entries);
+            }
+        } else if (attrs.isRegularFile()) {
+            entries.add(new Entry(path, name, TarEntry.TYPE_FILE, attrs.size(), mode,
+                    modTime, null));
+        } else if (attrs.isSymbolicLink()) {
+            entries.add(new Entry(path, name, TarEntry.TYPE_SYMLINK, 0, mode, modTime,
+                    Files.readSymbolicLink(path).toString()));
+        } else {
+            System.err.printf("Skipping %s (not a file, directory or link)\n", name);
+        }
+    }
+
+    private static int mode(Path path, BasicFileAttributes attrs) throws IOException {
+        try {
+            PosixFileAttributes posix = Files.readAttributes(path, PosixFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            int mode = 0;
+            for (PosixFilePermission permission : posix.permissions()) {
+                // OWNER_READ is 0400, OTHERS_EXECUTE 0001
+                mode |= 0400 >> permission.ordinal();
+            }
+            return mode;
+        } catch (UnsupportedOperationException e) {
+            return attrs.isDirectory() ? 0755 : 0644;
+        }
+    }
+
+    private static List<Path> sorted(Path dir) throws IOException {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                children.add(child);
+            }
+        }
+        Collections.sort(children);
+        return children;
+    }
+
+    private static Callable<byte[]> read(final Entry entry) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                byte[] content = Files.readAllBytes(entry.path);
+                if (content.length != entry.size) {
+                    throw new IOException(entry.path + " changed while packing");
+                }
+                return content;
+            }
+        };
+    }
+
+    private static void copy(Entry entry, TarWriter tar, byte[] buf) throws IOException {
+        try (InputStream in = Files.newInputStream(entry.path)) {
+            long remaining = entry.size;
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    throw new EOFException(entry.path + " changed while packing");
+                }
+                tar.write(buf, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+}
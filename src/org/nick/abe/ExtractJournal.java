@@ -0,0 +1,210 @@
+package org.nick.abe;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// The journal of an extraction into a file (<tar>.journal), see
+// ResumableExtractor: the backup it is for, followed by checkpoints from
+// which decoding can restart, each appended once the output up to it is on
+// disk. Every checkpoint is forced to disk too and carries a CRC-32, so the
+// last one may be cut short by a crash without harm.
+class ExtractJournal implements Closeable {
+
+    static final String SUFFIX = ".journal";
+    static final long DEFAULT_SPACING = 64L * 1024 * 1024;
+
+    private static final byte[] MAGIC = "ABE JOURNAL 1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    // A BackupIndex checkpoint, plus the Adler-32 of the tar before it to
+    // check the zlib trailer with. For uncompressed backups the bit offset
+    // is that of the output offset and the window empty.
+    static class Checkpoint extends BackupIndex.Checkpoint {
+
+        private final long adler;
+
+        Checkpoint(long outputOffset, long bitOffset, long cipherOffset, byte[] iv,
+                byte[] window, long adler) {
+            super(outputOffset, bitOffset, cipherOffset, iv, window);
+            this.adler = adler;
+        }
+
+        long getAdler() {
+            return adler;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Checkpoint last;
+
+    private ExtractJournal(Path path, FileChannel channel, Checkpoint last) {
+        this.path = path;
+        this.channel = channel;
+        this.last = last;
+    }
+
+    static Path journalPath(Path output) {
+        return output.resolveSibling(output.getFileName() + SUFFIX);
+    }
+
+    // the checkpoint to resume at, null to start from the beginning
+    Checkpoint getLast() {
+        return last;
+    }
+
+    // a new, empty journal, replacing any old one
+    static ExtractJournal create(Path path, BackupHeader header, long backupLength)
+            throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            byte[] identity = identity(header, backupLength);
+            out.writeInt(identity.length);
+            out.write(identity);
+            writeFully(channel, bytes.toByteArray());
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return new ExtractJournal(path, channel, null);
+    }
+
+    // The journal at path, which has to be for the same backup, continued
+    // from its last checkpoint within outputLength bytes of output. Those
+    // beyond are dropped, as is a damaged end.
+    static ExtractJournal resume(Path path, BackupHeader header, long backupLength,
+            long outputLength) throws IOException {
+        Checkpoint last = null;
+        long end;
+        try (InputStream file = Files.newInputStream(path)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not an extraction journal: " + path);
+            }
+            byte[] identity = new byte[in.readInt()];
+            in.readFully(identity);
+            if (!Arrays.equals(identity, identity(header, backupLength))) {
+                throw new IllegalStateException(path + " is the journal of another backup");
+            }
+            end = MAGIC.length + 4 + identity.length;
+            long position = end;
+            while (true) {
+                Checkpoint cp;
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    CRC32 crc = new CRC32();
+                    crc.update(record, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    cp = readCheckpoint(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                position += 4 + length + 4;
+                if (cp.getOutputOffset() > outputLength) {
+                    break;
+                }
+                last = cp;
+                end = position;
+            }
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        try {
+            channel.truncate(end);
+            channel.position(end);
+            channel.force(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new ExtractJournal(path, channel, last);
+    }
+
+    // the output up to the checkpoint has to be on disk already
+    void append(Checkpoint cp) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(cp.getOutputOffset());
+        out.writeLong(cp.getBitOffset());
+        out.writeLong(cp.getCipherOffset());
+        BackupIndex.writeBytes(out, cp.getIv());
+        BackupIndex.writeBytes(out, cp.getWindow());
+        out.writeLong(cp.getAdler());
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        bytes.reset();
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+        writeFully(channel, bytes.toByteArray());
+        channel.force(false);
+    }
+
+    // once the extraction is complete
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static Checkpoint readCheckpoint(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        return new Checkpoint(in.readLong(), in.readLong(), in.readLong(),
+                BackupIndex.readBytes(in), BackupIndex.readBytes(in), in.readLong());
+    }
+
+    // what tells backups apart: the header, with its random salts, and the
+    // length
+    private static byte[] identity(BackupHeader header, long backupLength)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(backupLength);
+        BackupIndex.writeHeader(out, header);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
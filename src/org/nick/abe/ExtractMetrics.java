@@ -0,0 +1,172 @@
+package org.nick.abe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// What an extraction did and how long it took. Stage times are the time
+// spent in the stage itself, not waiting for the stages feeding it, so they
+// show which one limits throughput.
+public class ExtractMetrics {
+
+    public static class Stage {
+
+        private final String name;
+        private final long bytes;
+        private final long nanos;
+
+        Stage(String name, long bytes, long nanos) {
+            this.name = name;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        // read, decrypt, inflate or write
+        public String getName() {
+            return name;
+        }
+
+        // bytes coming out of the stage
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    private String mode;
+    private long backupBytes = -1;
+    private long bodyBytes;
+    private long tarBytes;
+    private long headerNanos;
+    private long keyDerivationNanos;
+    private long totalNanos;
+    private final List<Stage> stages = new ArrayList<>();
+
+    // how the body was decoded: copy, serial, pipelined or parallel-inflate
+    public String getMode() {
+        return mode;
+    }
+
+    // size of the backup file, -1 if unknown
+    public long getBackupBytes() {
+        return backupBytes;
+    }
+
+    // encrypted and/or compressed body bytes read
+    public long getBodyBytes() {
+        return bodyBytes;
+    }
+
+    public long getTarBytes() {
+        return tarBytes;
+    }
+
+    // tar bytes per body byte, 1 for plain backups
+    public double getCompressionRatio() {
+        return bodyBytes == 0 ? 1 : (double) tarBytes / bodyBytes;
+    }
+
+    public long getHeaderNanos() {
+        return headerNanos;
+    }
+
+    // unwrapping the master key (0 for unencrypted backups), the part of
+    // opening a backup that doesn't depend on its size
+    public long getKeyDerivationNanos() {
+        return keyDerivationNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    void setBackupBytes(long backupBytes) {
+        this.backupBytes = backupBytes;
+    }
+
+    void setBodyBytes(long bodyBytes) {
+        this.bodyBytes = bodyBytes;
+    }
+
+    void setTarBytes(long tarBytes) {
+        this.tarBytes = tarBytes;
+    }
+
+    void setHeaderNanos(long headerNanos) {
+        this.headerNanos = headerNanos;
+    }
+
+    void setKeyDerivationNanos(long keyDerivationNanos) {
+        this.keyDerivationNanos = keyDerivationNanos;
+    }
+
+    void setTotalNanos(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    void addStage(String name, long bytes, long nanos) {
+        stages.add(new Stage(name, bytes, Math.max(0, nanos)));
+    }
+
+    // one line, for monitoring
+    public String toJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"mode\":\"").append(mode).append('"');
+        json.append(",\"backupBytes\":").append(backupBytes);
+        json.append(",\"bodyBytes\":").append(bodyBytes);
+        json.append(",\"tarBytes\":").append(tarBytes);
+        json.append(",\"compressionRatio\":").append(format(getCompressionRatio()));
+        json.append(",\"headerMs\":").append(format(headerNanos / 1e6));
+        json.append(",\"keyDerivationMs\":").append(format(keyDerivationNanos / 1e6));
+        json.append(",\"totalMs\":").append(format(totalNanos / 1e6));
+        json.append(",\"tarMBps\":").append(format(rate(tarBytes, totalNanos)));
+        json.append(",\"stages\":[");
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            json.append(i == 0 ? "{" : ",{");
+            json.append("\"name\":\"").append(stage.name).append('"');
+            json.append(",\"bytes\":").append(stage.bytes);
+            json.append(",\"ms\":").append(format(stage.nanos / 1e6));
+            json.append(",\"MBps\":").append(format(rate(stage.bytes, stage.nanos)));
+            json.append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(512);
+        text.append(String.format(Locale.ROOT,
+                "%s: %d body bytes -> %d tar bytes (ratio %.2f) in %.1f ms, %.1f MB/s\n",
+                mode, bodyBytes, tarBytes, getCompressionRatio(), totalNanos / 1e6,
+                rate(tarBytes, totalNanos)));
+        text.append(String.format(Locale.ROOT, "header %.1f ms, key derivation %.1f ms\n",
+                headerNanos / 1e6, keyDerivationNanos / 1e6));
+        for (Stage stage : stages) {
+            text.append(String.format(Locale.ROOT, "%-8s %12d bytes %10.1f ms %8.1f MB/s\n",
+                    stage.name, stage.bytes, stage.nanos / 1e6, rate(stage.bytes, stage.nanos)));
+        }
+        return text.toString();
+    }
+
+    private static double rate(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,156 @@
+package org.nick.abe;
+
+import java.util.concurrent.ForkJoinPool;
+
+// Knobs for AndroidBackup.extractAsTar(). The defaults reproduce the
+// original single-threaded behaviour.
+public class ExtractOptions {
+
+    private boolean pipelined;
+    private int decryptThreads = 1;
+    private int writeThreads = 4;
+    private int digestThreads = Runtime.getRuntime().availableProcessors();
+    private int inflateThreads = 1;
+    private int checkpointSpacing = BackupIndex.DEFAULT_SPACING;
+    private long journalSpacing;
+    private boolean resume;
+    private KeyCache keyCache;
+    private ForkJoinPool decryptPool;
+    private MetricsListener metricsListener;
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    // run read, decrypt, inflate and write on separate threads
+    public ExtractOptions setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        return this;
+    }
+
+    public int getDecryptThreads() {
+        return decryptThreads;
+    }
+
+    // decrypt the body in large chunks on this many threads, 1 to decrypt
+    // serially on the calling thread
+    public ExtractOptions setDecryptThreads(int decryptThreads) {
+        if (decryptThreads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + decryptThreads);
+        }
+        this.decryptThreads = decryptThreads;
+        return this;
+    }
+
+    public int getInflateThreads() {
+        return inflateThreads;
+    }
+
+    // inflate parts of the body on this many threads, see ParallelInflater
+    public ExtractOptions setInflateThreads(int inflateThreads) {
+        if (inflateThreads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + inflateThreads);
+        }
+        this.inflateThreads = inflateThreads;
+        return this;
+    }
+
+    public int getWriteThreads() {
+        return writeThreads;
+    }
+
+    // threads creating and writing files when extracting to a directory
+    public ExtractOptions setWriteThreads(int writeThreads) {
+        if (writeThreads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + writeThreads);
+        }
+        this.writeThreads = writeThreads;
+        return this;
+    }
+
+    public int getDigestThreads() {
+        return digestThreads;
+    }
+
+    // threads computing the SHA-256 of entries when verifying
+    public ExtractOptions setDigestThreads(int digestThreads) {
+        if (digestThreads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + digestThreads);
+        }
+        this.digestThreads = digestThreads;
+        return this;
+    }
+
+    public int getCheckpointSpacing() {
+        return checkpointSpacing;
+    }
+
+    // bytes of tar data between the checkpoints of an index. Closer
+    // checkpoints make the index larger and extracting single entries faster.
+    public ExtractOptions setCheckpointSpacing(int checkpointSpacing) {
+        if (checkpointSpacing < 1) {
+            throw new IllegalArgumentException("Invalid checkpoint spacing: "
+                    + checkpointSpacing);
+        }
+        this.checkpointSpacing = checkpointSpacing;
+        return this;
+    }
+
+    public long getJournalSpacing() {
+        return journalSpacing;
+    }
+
+    // keep a journal of the extraction into a file with a checkpoint every
+    // this many bytes of tar data, see ResumableExtractor; 0 for none
+    public ExtractOptions setJournalSpacing(long journalSpacing) {
+        if (journalSpacing < 0) {
+            throw new IllegalArgumentException("Invalid journal spacing: " + journalSpacing);
+        }
+        this.journalSpacing = journalSpacing;
+        return this;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    // continue from the journal of an interrupted extraction into the same
+    // file if there is one. Journals with the default spacing unless set.
+    public ExtractOptions setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    public KeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    // look up and store master keys of encrypted backups here, null to
+    // always derive them from the password
+    public ExtractOptions setKeyCache(KeyCache keyCache) {
+        this.keyCache = keyCache;
+        return this;
+    }
+
+    public ForkJoinPool getDecryptPool() {
+        return decryptPool;
+    }
+
+    // decrypt in parallel chunks on this pool instead of one made for
+    // getDecryptThreads(). It is shared and not shut down.
+    public ExtractOptions setDecryptPool(ForkJoinPool decryptPool) {
+        this.decryptPool = decryptPool;
+        return this;
+    }
+
+    public MetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    // report progress and metrics here instead of printing the percentage
+    // done; null for the percentage
+    public ExtractOptions setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+}
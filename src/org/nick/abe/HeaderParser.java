@@ -0,0 +1,228 @@
+package org.nick.abe;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Reads the backup header from a buffer instead of one read() per byte.
+// Whatever was read past the header stays in the buffer and is returned
+// first by getBodyStream(), so the body pipeline does not lose any bytes.
+class HeaderParser {
+
+    static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private long offset;
+
+    // bounds of the last line read, without the '\n'
+    private int lineStart;
+    private int lineEnd;
+
+    // told about the key derivation parameters of an encrypted backup as
+    // soon as they are read, before the rest of the header
+    interface KeyParametersListener {
+
+        void keyParameters(byte[] userSalt, int rounds);
+    }
+
+    HeaderParser(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    HeaderParser(InputStream in, int bufferSize) {
+        this(in, new byte[bufferSize]);
+    }
+
+    // buf has to hold the longest header line, the master key blob
+    HeaderParser(InputStream in, byte[] buf) {
+        this.in = in;
+        this.buf = buf;
+    }
+
+    BackupHeader parse() throws IOException {
+        return parse(null);
+    }
+
+    BackupHeader parse(KeyParametersListener listener) throws IOException {
+        readLine(); // 1
+        if (!lineEquals(AndroidBackup.BACKUP_FILE_HEADER_MAGIC)) {
+            throw new IllegalArgumentException("Not an Android backup file");
+        }
+
+        readLine(); // 2
+        int version = lineAsInt();
+        if (version < AndroidBackup.BACKUP_FILE_V1 || version > AndroidBackup.BACKUP_FILE_V5) {
+            throw new IllegalArgumentException(
+                    "Don't know how to process version " + lineAsString());
+        }
+
+        readLine(); // 3
+        boolean compressed = lineAsInt() == 1;
+
+        readLine(); // 4
+        String encryptionAlg = lineAsString();
+        if (!encryptionAlg.equals(AndroidBackup.ENCRYPTION_ALGORITHM_NAME)) {
+            return new BackupHeader(version, compressed, encryptionAlg, null, null, 0,
+                    null, null, offset);
+        }
+
+        readLine(); // 5
+        byte[] userSalt = lineAsBytes();
+        if (userSalt.length != AndroidBackup.PBKDF2_SALT_SIZE / 8) {
+            throw new IllegalArgumentException("Invalid salt length: "
+                    + userSalt.length);
+        }
+        readLine(); // 6
+        byte[] ckSalt = lineAsBytes();
+        readLine(); // 7
+        int rounds = lineAsInt();
+        if (listener != null) {
+            listener.keyParameters(userSalt, rounds);
+        }
+        readLine(); // 8
+        byte[] userIv = lineAsBytes();
+        readLine(); // 9
+        byte[] masterKeyBlob = lineAsBytes();
+
+        return new BackupHeader(version, compressed, encryptionAlg, userSalt, ckSalt,
+                rounds, userIv, masterKeyBlob, offset);
+    }
+
+    // everything after the header, starting with what is still buffered
+    InputStream getBodyStream() {
+        return new BodyInputStream(in);
+    }
+
+    // body bytes that were read together with the header
+    ByteBuffer getBufferedBody() {
+        return ByteBuffer.wrap(buf, pos, limit - pos);
+    }
+
+    private void readLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buf[scan] == '\n') {
+                    lineStart = pos;
+                    lineEnd = scan;
+                    offset += scan + 1 - pos;
+                    pos = scan + 1;
+                    return;
+                }
+            }
+            scan -= pos;
+            if (!fill()) {
+                throw new EOFException("Unexpected end of backup header");
+            }
+            scan += pos;
+        }
+    }
+
+    // moves unread data to the front and appends whatever the stream has
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            throw new IllegalArgumentException("Header line longer than "
+                    + buf.length + " bytes");
+        }
+        int read = in.read(buf, limit, buf.length - limit);
+        if (read < 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private boolean lineEquals(String expected) {
+        // the magic constant includes its newline
+        int length = lineEnd - lineStart + 1;
+        if (length != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[lineStart + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String lineAsString() {
+        return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII);
+    }
+
+    private int lineAsInt() {
+        if (lineEnd == lineStart || lineEnd - lineStart > 9) {
+            throw new NumberFormatException("For input string: \"" + lineAsString() + "\"");
+        }
+        int value = 0;
+        for (int i = lineStart; i < lineEnd; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + lineAsString() + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private byte[] lineAsBytes() {
+        return AndroidBackup.hexToByteArray(buf, lineStart, lineEnd);
+    }
+
+    private class BodyInputStream extends FilterInputStream {
+
+        BodyInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos < limit) {
+                return buf[pos++] & 0xff;
+            }
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos < limit) {
+                int n = Math.min(len, limit - pos);
+                System.arraycopy(buf, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (pos < limit) {
+                int skipped = (int) Math.min(n, limit - pos);
+                pos += skipped;
+                return skipped;
+            }
+            return in.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (limit - pos) + in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.nick.abe;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Cipher;
+
+// Opens the tar stream of an indexed backup at any offset, decrypting and
+// inflating only from the nearest checkpoint on.
+class IndexedReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path backup;
+    private final BackupIndex index;
+    private final MasterKey masterKey;
+
+    private IndexedReader(Path backup, BackupIndex index, MasterKey masterKey) {
+        this.backup = backup;
+        this.index = index;
+        this.masterKey = masterKey;
+    }
+
+    static IndexedReader open(String backupFilename, String password)
+            throws IOException, GeneralSecurityException {
+        return open(backupFilename, password, null);
+    }
+
+    static IndexedReader open(String backupFilename, String password, KeyCache keyCache)
+            throws IOException, GeneralSecurityException {
+        String indexFilename = BackupIndex.indexFilename(backupFilename);
+        if (!Files.exists(Paths.get(indexFilename))) {
+            throw new IllegalStateException("No index for " + backupFilename
+                    + ", create one with 'abe index' first");
+        }
+        BackupIndex index = BackupIndex.read(indexFilename);
+        Path backup = Paths.get(backupFilename);
+        if (Files.size(backup) != index.getBackupLength()) {
+            throw new IllegalStateException(indexFilename
+                    + " is out of date, run 'abe index' again");
+        }
+        MasterKey masterKey = null;
+        if (index.getHeader().isEncrypted()) {
+            password = AndroidBackup.requirePassword(password);
+            masterKey = keyCache != null ? keyCache.unwrap(index.getHeader(), password, null, true)
+                    : AndroidBackup.unwrapMasterKey(index.getHeader(), password);
+        }
+        return new IndexedReader(backup, index, masterKey);
+    }
+
+    // the index of an opened backup if there is an up to date one, null
+    // otherwise
+    static IndexedReader forSource(BackupSource source) throws IOException {
+        String backupFilename = source.getFilename();
+        if (backupFilename == null || "-".equals(backupFilename)) {
+            return null;
+        }
+        String indexFilename = BackupIndex.indexFilename(backupFilename);
+        if (!Files.exists(Paths.get(indexFilename))) {
+            return null;
+        }
+        BackupIndex index = BackupIndex.read(indexFilename);
+        Path backup = Paths.get(backupFilename);
+        if (Files.size(backup) != index.getBackupLength()) {
+            return null;
+        }
+        return new IndexedReader(backup, index, source.getMasterKey());
+    }
+
+    BackupIndex getIndex() {
+        return index;
+    }
+
+    // where openAt(tarOffset) starts decoding
+    long restartOffset(long tarOffset) {
+        if (!index.getHeader().isCompressed()) {
+            return tarOffset;
+        }
+        return index.findCheckpoint(tarOffset).getOutputOffset();
+    }
+
+    // the tar stream from tarOffset on
+    InputStream openAt(long tarOffset) throws IOException, GeneralSecurityException {
+        InputStream in;
+        long skip;
+        if (!index.getHeader().isCompressed()) {
+            in = openBody(tarOffset, null);
+            skip = 0;
+        } else {
+            BackupIndex.Checkpoint cp = index.findCheckpoint(tarOffset);
+            in = openCheckpoint(cp);
+            skip = tarOffset - cp.getOutputOffset();
+        }
+        try {
+            skipFully(in, skip);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    // the tar stream starting at the checkpoint
+    InputStream openCheckpoint(BackupIndex.Checkpoint cp)
+            throws IOException, GeneralSecurityException {
+        long byteOffset = cp.getBitOffset() >>> 3;
+        int shift = (int) (cp.getBitOffset() & 7);
+        InputStream body = openBody(byteOffset, cp.getIv());
+        if (shift != 0) {
+            int firstByte = body.read();
+            if (firstByte < 0) {
+                body.close();
+                throw new EOFException("Unexpected end of backup");
+            }
+            body = new SequenceInputStream(
+                    new ByteArrayInputStream(primer(firstByte, shift)), body);
+        }
+        final Inflater inflater = new Inflater(true);
+        if (cp.getWindow().length > 0) {
+            inflater.setDictionary(cp.getWindow());
+        }
+        return new InflaterInputStream(body, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    // the decrypted body from offset on. iv is the ciphertext block before
+    // the aligned offset if already known.
+    private InputStream openBody(long offset, byte[] iv)
+            throws IOException, GeneralSecurityException {
+        BackupHeader header = index.getHeader();
+        long aligned = BackupIndex.alignedBodyOffset(header, offset);
+        long position = header.getBodyOffset() + aligned;
+        FileChannel channel = FileChannel.open(backup, StandardOpenOption.READ);
+        InputStream in;
+        try {
+            if (masterKey != null && iv == null && aligned > 0) {
+                iv = BackupIndex.readBlock(channel, position - 16);
+            }
+            channel.position(position);
+            in = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+            if (masterKey != null) {
+                Cipher c = iv == null ? masterKey.newDecryptCipher()
+                        : masterKey.newDecryptCipher(iv);
+                in = new BulkCipherInputStream(in, c, BUFFER_SIZE);
+            }
+            skipFully(in, offset - aligned);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return in;
+    }
+
+    static void skipFully(InputStream in, long n) throws IOException {
+        byte[] buf = null;
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (buf == null) {
+                    buf = new byte[8 * 1024];
+                }
+                int read = in.read(buf, 0, (int) Math.min(buf.length, n));
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of backup");
+                }
+                skipped = read;
+            }
+            n -= skipped;
+        }
+    }
+
+    // Inflater can only start at a byte boundary, and shifting the input
+    // would break the alignment of stored blocks. Instead the first byte is
+    // replaced with empty blocks taking up exactly the bits before the
+    // checkpoint, like zlib's inflatePrime(): fixed Huffman blocks holding
+    // only an end-of-block code are 10 bits, and an equally empty dynamic
+    // block is 93 bits, which makes up for odd shifts.
+    static byte[] primer(int firstByte, int shift) {
+        BitWriter out = new BitWriter();
+        int fixedBlocks = shift / 2;
+        if (shift % 2 != 0) {
+            out.emptyDynamicBlock();
+            fixedBlocks = ((shift - 5) & 7) / 2;
+        }
+        for (int i = 0; i < fixedBlocks; i++) {
+            out.emptyFixedBlock();
+        }
+        // the rest of the first byte is the start of the checkpoint block
+        for (int i = shift; i < 8; i++) {
+            out.write((firstByte >>> i) & 1, 1);
+        }
+        return out.toByteArray();
+    }
+
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        void write(int value, int bits) {
+            for (int i = 0; i < bits; i++) {
+                current |= ((value >>> i) & 1) << count;
+                if (++count == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void emptyFixedBlock() {
+            write(0, 1); // not final
+            write(1, 2); // fixed Huffman codes
+            write(0, 7); // end of block
+        }
+
+        // a literal/length code with just end-of-block, one distance code
+        void emptyDynamicBlock() {
+            write(0, 1);
+            write(2, 2); // dynamic Huffman codes
+            write(0, 5); // 257 literal/length codes
+            write(0, 5); // 1 distance code
+            write(15, 4); // 19 code length codes
+            // code lengths 1 and 18 have 1 bit codes, 0 and 1 respectively
+            for (int symbol : RawInflater.CODE_LENGTH_ORDER) {
+                write(symbol == 1 || symbol == 18 ? 1 : 0, 3);
+            }
+            write(1, 1); // 138 zeros
+            write(127, 7);
+            write(1, 1); // 118 zeros
+            write(107, 7);
+            write(0, 1); // end-of-block has length 1
+            write(0, 1); // so does the distance code
+            write(0, 1); // end of block
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package org.nick.abe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Remembers unwrapped master keys, so that opening the same encrypted backup
+// again skips the PBKDF2 runs for the user key and the checksum.
+//
+// Entries are looked up by an HMAC of the header fields the master key
+// depends on (salts, rounds, encrypted key blob) and the password, so a
+// cached key is only handed out for the right password. The cache file is
+// encrypted with AES-GCM under a random local key. Both files are readable
+// by the owner only; anyone who can read the local key can read the cache.
+// The cache file is only rewritten when an entry is added, dropping the
+// oldest entries beyond maxEntries; those this process found in it count as
+// new again.
+public class KeyCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static final byte[] MAGIC = "ABE KEYS 1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final String LOCAL_KEY_FILE = "local.key";
+    private static final String CACHE_FILE = "keys.cache";
+    private static final int LOCAL_KEY_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_BITS = 128;
+
+    private final Path directory;
+    private final int maxEntries;
+    private final SecureRandom random = new SecureRandom();
+    private SecretKey localKey;
+    // entries found since the cache file was last written
+    private final Set<String> used = new HashSet<>();
+
+    public KeyCache(String directory, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxEntries);
+        }
+        this.directory = Paths.get(directory);
+        this.maxEntries = maxEntries;
+    }
+
+    // ~/.abe/keys
+    public static String defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".abe", "keys").toString();
+    }
+
+    // The master key of the backup, from the cache or else unwrapped with
+    // the password and then cached. userKey and verbose as for
+    // AndroidBackup.unwrapMasterKey().
+    MasterKey unwrap(BackupHeader header, String password, Future<SecretKey> userKey,
+            boolean verbose) throws GeneralSecurityException {
+        String id = null;
+        try {
+            id = entryId(header, password);
+            MasterKey cached = get(id);
+            if (cached != null) {
+                if (userKey != null) {
+                    userKey.cancel(true);
+                }
+                if (verbose) {
+                    System.err.println("Master key found in key cache.");
+                }
+                return cached;
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            if (verbose) {
+                System.err.println("Ignoring key cache: " + e);
+            }
+        }
+        MasterKey masterKey = AndroidBackup.unwrapMasterKey(header, password, userKey,
+                verbose);
+        if (id != null) {
+            try {
+                put(id, masterKey);
+            } catch (IOException | GeneralSecurityException e) {
+                if (verbose) {
+                    System.err.println("Could not update key cache: " + e);
+                }
+            }
+        }
+        return masterKey;
+    }
+
+    private synchronized MasterKey get(String id)
+            throws IOException, GeneralSecurityException {
+        MasterKey masterKey = load().get(id);
+        if (masterKey != null) {
+            // moved to the end with the next put(), rewriting the file for
+            // every hit is not worth it
+            used.add(id);
+        }
+        return masterKey;
+    }
+
+    private synchronized void put(String id, MasterKey masterKey)
+            throws IOException, GeneralSecurityException {
+        LinkedHashMap<String, MasterKey> entries;
+        try {
+            entries = load();
+        } catch (IOException | GeneralSecurityException e) {
+            // unreadable, start over
+            entries = new LinkedHashMap<>();
+        }
+        for (String usedId : used) {
+            MasterKey usedKey = entries.remove(usedId);
+            if (usedKey != null) {
+                entries.put(usedId, usedKey);
+            }
+        }
+        used.clear();
+        entries.remove(id);
+        entries.put(id, masterKey);
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (entries.size() > maxEntries) {
+            eldest.next();
+            eldest.remove();
+        }
+        save(entries);
+    }
+
+    private String entryId(BackupHeader header, String password)
+            throws IOException, GeneralSecurityException {
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        sha.update(header.getUserSalt());
+        sha.update(header.getChecksumSalt());
+        sha.update(new byte[] { (byte) (header.getRounds() >>> 24),
+                (byte) (header.getRounds() >>> 16), (byte) (header.getRounds() >>> 8),
+                (byte) header.getRounds() });
+        sha.update(header.getMasterKeyBlob());
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(getLocalKey());
+        mac.update(sha.digest());
+        return AndroidBackup.toHex(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private SecretKey getLocalKey() throws IOException {
+        if (localKey != null) {
+            return localKey;
+        }
+        Path file = directory.resolve(LOCAL_KEY_FILE);
+        if (!Files.exists(file)) {
+            createPrivateDirectory();
+            createLocalKey(file);
+        }
+        byte[] key = Files.readAllBytes(file);
+        if (key.length != LOCAL_KEY_SIZE) {
+            throw new IOException("Invalid local key in " + file);
+        }
+        localKey = new SecretKeySpec(key, "AES");
+        return localKey;
+    }
+
+    // Writes a new key next to file and links it there, so that no one
+    // reads a partly written key. If another process got there first, its
+    // key is kept: replacing it would make its entries unreadable.
+    private void createLocalKey(Path file) throws IOException {
+        byte[] key = new byte[LOCAL_KEY_SIZE];
+        random.nextBytes(key);
+        Path tmp = directory.resolve(LOCAL_KEY_FILE + "." + Long.toHexString(random.nextLong()));
+        writePrivateFile(tmp, key);
+        try {
+            try {
+                Files.createLink(file, tmp);
+            } catch (UnsupportedOperationException e) {
+                // fails if file exists too, if not quite atomically
+                Files.move(tmp, file);
+            }
+        } catch (FileAlreadyExistsException e) {
+            // created by another process in the meantime
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // entries oldest first
+    private LinkedHashMap<String, MasterKey> load()
+            throws IOException, GeneralSecurityException {
+        LinkedHashMap<String, MasterKey> entries = new LinkedHashMap<>();
+        Path file = directory.resolve(CACHE_FILE);
+        if (!Files.exists(file)) {
+            return entries;
+        }
+        byte[] data = Files.readAllBytes(file);
+        if (data.length < MAGIC.length + NONCE_SIZE
+                || !Arrays.equals(Arrays.copyOf(data, MAGIC.length), MAGIC)) {
+            throw new IOException("Not a key cache: " + file);
+        }
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        c.init(Cipher.DECRYPT_MODE, getLocalKey(),
+                new GCMParameterSpec(TAG_BITS, data, MAGIC.length, NONCE_SIZE));
+        c.updateAAD(MAGIC);
+        int offset = MAGIC.length + NONCE_SIZE;
+        byte[] plain = c.doFinal(data, offset, data.length - offset);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String id = in.readUTF();
+            byte[] key = new byte[in.readUnsignedByte()];
+            in.readFully(key);
+            byte[] iv = new byte[in.readUnsignedByte()];
+            in.readFully(iv);
+            entries.put(id, new MasterKey(key, iv));
+        }
+        return entries;
+    }
+
+    private void save(Map<String, MasterKey> entries)
+            throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(plain);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, MasterKey> entry : entries.entrySet()) {
+            out.writeUTF(entry.getKey());
+            byte[] key = entry.getValue().getKeyBytes();
+            out.writeByte(key.length);
+            out.write(key);
+            byte[] iv = entry.getValue().getIv();
+            out.writeByte(iv.length);
+            out.write(iv);
+        }
+        out.flush();
+
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+        c.init(Cipher.ENCRYPT_MODE, getLocalKey(), new GCMParameterSpec(TAG_BITS, nonce));
+        c.updateAAD(MAGIC);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(MAGIC);
+        data.write(nonce);
+        data.write(c.doFinal(plain.toByteArray()));
+
+        // written next to it and moved over it, so readers never see half a file
+        Path file = directory.resolve(CACHE_FILE);
+        Path tmp = directory.resolve(CACHE_FILE + "." + Long.toHexString(random.nextLong()));
+        writePrivateFile(tmp, data.toByteArray());
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    private void createPrivateDirectory() throws IOException {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+        Files.createDirectories(directory);
+        if (isPosix()) {
+            Files.setPosixFilePermissions(directory,
+                    PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+
+    // creates file with owner-only permissions before writing anything to it
+    private void writePrivateFile(Path file, byte[] data) throws IOException {
+        if (isPosix()) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(file);
+            File f = file.toFile();
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(false, false);
+            f.setWritable(true, true);
+        }
+        Files.write(file, data);
+    }
+
+    private boolean isPosix() {
+        return directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+}
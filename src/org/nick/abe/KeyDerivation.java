@@ -0,0 +1,151 @@
+package org.nick.abe;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.SecretKey;
+
+// Runs the PBKDF2 rounds of unwrapping a master key off the calling thread,
+// so that they overlap with reading the header and with each other.
+class KeyDerivation {
+
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "abe-kdf");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private KeyDerivation() {
+    }
+
+    // Starts deriving the user key as soon as the header parser has read the
+    // salt and round count, while it goes on with the IV and key blob.
+    static class UserKeyPrefetch implements HeaderParser.KeyParametersListener {
+
+        private final String password;
+        private Future<SecretKey> userKey;
+
+        UserKeyPrefetch(String password) {
+            this.password = password;
+        }
+
+        @Override
+        public void keyParameters(byte[] userSalt, int rounds) {
+            userKey = userKey(password, userSalt, rounds);
+        }
+
+        // null if the header had no key parameters
+        Future<SecretKey> getUserKey() {
+            return userKey;
+        }
+    }
+
+    static Future<SecretKey> userKey(final String password, final byte[] salt,
+            final int rounds) {
+        return POOL.submit(new Callable<SecretKey>() {
+            @Override
+            public SecretKey call() {
+                // XXX we don't support non-ASCII passwords
+                return AndroidBackup.buildPasswordKey(password, salt, rounds, false);
+            }
+        });
+    }
+
+    // Checks the master key against its checksum, computed the way that
+    // matches the backup version and the other way, since backups made
+    // around KitKat don't always agree with their version. With more than
+    // one core both are computed at once and the first match wins. PBKDF2
+    // can't be interrupted, so the other one runs to completion in the
+    // background and its result is dropped. verbose prints the checksums.
+    static boolean checksumMatches(byte[] mk, byte[] ckSalt, int rounds,
+            boolean preferUtf8, byte[] expected, boolean verbose) {
+        if (Runtime.getRuntime().availableProcessors() < 2) {
+            return checksum(mk, ckSalt, rounds, preferUtf8).matches(expected, verbose)
+                    || checksum(mk, ckSalt, rounds, !preferUtf8).matches(expected, verbose);
+        }
+
+        CompletionService<Checksum> completion = new ExecutorCompletionService<>(POOL);
+        Future<Checksum> preferred = completion.submit(
+                checksumTask(mk, ckSalt, rounds, preferUtf8));
+        Future<Checksum> other = completion.submit(
+                checksumTask(mk, ckSalt, rounds, !preferUtf8));
+        try {
+            for (int i = 0; i < 2; i++) {
+                if (await(completion.take()).matches(expected, verbose)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while verifying the master key", e);
+        } finally {
+            preferred.cancel(true);
+            other.cancel(true);
+        }
+    }
+
+    private static Callable<Checksum> checksumTask(final byte[] mk, final byte[] ckSalt,
+            final int rounds, final boolean useUtf8) {
+        return new Callable<Checksum>() {
+            @Override
+            public Checksum call() {
+                return checksum(mk, ckSalt, rounds, useUtf8);
+            }
+        };
+    }
+
+    private static Checksum checksum(byte[] mk, byte[] ckSalt, int rounds, boolean useUtf8) {
+        return new Checksum(useUtf8, AndroidBackup.makeKeyChecksum(mk, ckSalt, rounds,
+                useUtf8));
+    }
+
+    // the result of a task of this class, rethrowing what it failed with
+    static <T> T await(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static class Checksum {
+
+        private final boolean useUtf8;
+        private final byte[] value;
+
+        Checksum(boolean useUtf8, byte[] value) {
+            this.useUtf8 = useUtf8;
+            this.value = value;
+        }
+
+        boolean matches(byte[] expected, boolean verbose) {
+            boolean matches = Arrays.equals(value, expected);
+            if (verbose) {
+                System.err.printf("Calculated MK checksum (use UTF-8: %s): %s\n", useUtf8,
+                        AndroidBackup.toHex(value));
+                if (!matches) {
+                    System.err.println("Checksum does not match.");
+                }
+            }
+            return matches;
+        }
+    }
+}
@@ -1,14 +1,102 @@
 package org.nick.abe;
 
-import java.security.Security;
-
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 
 public class Main {
 
     public static void main(String[] args) {
-        Security.addProvider(new BouncyCastleProvider());
+        // options (--name or --name=value) may appear anywhere
+        Map<String, String> options = new HashMap<>();
+        List<String> params = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    options.put(arg.substring(2), "");
+                } else {
+                    options.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                params.add(arg);
+            }
+        }
+        args = params.toArray(new String[0]);
+
+        if (args.length >= 1 && "providers".equals(args[0])) {
+            providers();
+
+            return;
+        }
+
+        if (options.containsKey("cipher-provider")) {
+            Ciphers.setProvider(options.get("cipher-provider"));
+            System.err.println("AES/CBC provider: " + Ciphers.getProviderName());
+        }
+
+        if (args.length >= 2 && "info".equals(args[0])) {
+            info(args);
+
+            return;
+        }
+
+        if (args.length >= 2 && "index".equals(args[0])) {
+            String password = args.length > 2 ? args[2] : System.getenv("ABE_PASSWD");
+            ExtractOptions indexOptions = new ExtractOptions()
+                    .setDecryptThreads(threadsOption(options, "decrypt-threads", 1))
+                    .setKeyCache(keyCacheOption(options));
+            if (options.containsKey("spacing")) {
+                indexOptions.setCheckpointSpacing(
+                        Integer.parseInt(options.get("spacing")) * 1024 * 1024);
+            }
+            AndroidBackup.writeIndex(args[1], password, indexOptions);
+
+            return;
+        }
+
+        if (args.length >= 2 && "verify".equals(args[0])) {
+            String password = args.length > 2 ? args[2] : System.getenv("ABE_PASSWD");
+            ExtractOptions verifyOptions = extractOptions(options);
+            if (options.containsKey("digest-threads")) {
+                verifyOptions.setDigestThreads(threadsOption(options, "digest-threads", 1));
+            }
+            AndroidBackup.verify(args[1], password, options.get("manifest"), verifyOptions);
+
+            return;
+        }
+
+        if (args.length >= 3 && "rekey".equals(args[0])) {
+            String oldPassword = args.length > 3 ? args[3] : System.getenv("ABE_PASSWD");
+            String newPassword = args.length > 4 ? args[4] : System.getenv("ABE_NEW_PASSWD");
+            int rounds = options.containsKey("rounds")
+                    ? Integer.parseInt(options.get("rounds")) : 0;
+            AndroidBackup.rekey(args[1], args[2], oldPassword, newPassword, rounds,
+                    new ExtractOptions().setKeyCache(keyCacheOption(options)));
+
+            return;
+        }
+
+        if (args.length >= 2 && "serve".equals(args[0])) {
+            serve(args[1], options);
+
+            return;
+        }
+
+        if (args.length >= 3 && "batch".equals(args[0])) {
+            String password = args.length > 3 ? args[3] : System.getenv("ABE_PASSWD");
+            if (!batch(args[1], args[2], password, options)) {
+                System.exit(1);
+            }
+
+            return;
+        }
 
         if (args.length < 3) {
             usage();
@@ -17,13 +105,16 @@ public class Main {
         }
 
         String mode = args[0];
-        if (!"pack".equals(mode) && !"unpack".equals(mode) && !"pack-kk".equals(mode)) {
+        if (!"pack".equals(mode) && !"unpack".equals(mode) && !"pack-kk".equals(mode)
+                && !"unpack-dir".equals(mode) && !"unpack-split".equals(mode)
+                && !"extract".equals(mode)
+                && !"pack-dir".equals(mode) && !"pack-dir-kk".equals(mode)) {
             usage();
 
             System.exit(1);
         }
 
-        boolean unpack = "unpack".equals(mode);
+        boolean unpack = mode.startsWith("unpack") || "extract".equals(mode);
         String backupFilename = unpack ? args[1] : args[2];
         String tarFilename = unpack ? args[2] : args[1];
         String password = null;
@@ -36,13 +127,200 @@ public class Main {
             password = System.getenv("ABE_PASSWD");
         }
 
-        if (unpack) {
-            AndroidBackup.extractAsTar(backupFilename, tarFilename, password);
+        if ("extract".equals(mode)) {
+            if (!options.containsKey("entry") && !options.containsKey("package")) {
+                usage();
+
+                System.exit(1);
+            }
+            AndroidBackup.extractEntries(backupFilename, tarFilename, password,
+                    options.get("entry"), options.get("package"),
+                    new ExtractOptions().setKeyCache(keyCacheOption(options)));
+        } else if (unpack) {
+            ExtractOptions extractOptions = extractOptions(options);
+            if ("unpack-dir".equals(mode)) {
+                AndroidBackup.extractToDirectory(backupFilename, tarFilename, password,
+                        extractOptions);
+            } else if ("unpack-split".equals(mode)) {
+                AndroidBackup.extractSplit(backupFilename, tarFilename, password,
+                        listOption(options, "include"), listOption(options, "exclude"),
+                        extractOptions);
+            } else {
+                AndroidBackup.extractAsTar(backupFilename, tarFilename, password,
+                        extractOptions);
+            }
+        } else if (mode.startsWith("pack-dir")) {
+            AndroidBackup.packDirectory(tarFilename, backupFilename, password,
+                    mode.endsWith("-kk"), packOptions(options));
         } else {
             boolean isKitKat = "pack-kk".equals(mode);
-            AndroidBackup.packTar(tarFilename, backupFilename, password, isKitKat);
+            AndroidBackup.packTar(tarFilename, backupFilename, password, isKitKat,
+                    packOptions(options));
+        }
+
+    }
+
+    private static ExtractOptions extractOptions(Map<String, String> options) {
+        ExtractOptions extractOptions = new ExtractOptions()
+                .setPipelined(options.containsKey("pipelined"))
+                .setDecryptThreads(threadsOption(options, "decrypt-threads", 1))
+                .setInflateThreads(threadsOption(options, "inflate-threads", 1))
+                .setWriteThreads(threadsOption(options, "write-threads", 4))
+                .setKeyCache(keyCacheOption(options))
+                .setMetricsListener(statsOption(options))
+                .setResume(options.containsKey("resume"));
+        // --journal[=MB]
+        String journal = options.get("journal");
+        if (journal != null) {
+            extractOptions.setJournalSpacing(journal.isEmpty() ? ExtractJournal.DEFAULT_SPACING
+                    : Long.parseLong(journal) * 1024 * 1024);
+        }
+        return extractOptions;
+    }
+
+    // --name=a,b,c
+    private static List<String> listOption(Map<String, String> options, String name) {
+        List<String> values = new ArrayList<>();
+        String value = options.get(name);
+        if (value != null) {
+            for (String v : value.split(",")) {
+                if (!v.trim().isEmpty()) {
+                    values.add(v.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    private static PackOptions packOptions(Map<String, String> options) {
+        PackOptions packOptions = new PackOptions()
+                .setDeflateThreads(threadsOption(options, "deflate-threads", 1))
+                .setReadThreads(threadsOption(options, "read-threads", 4))
+                .setCompressed(!options.containsKey("no-compress"))
+                .setAdaptive(options.containsKey("adaptive"));
+        if (options.containsKey("text-level")) {
+            packOptions.setTextLevel(Integer.parseInt(options.get("text-level")));
+        }
+        if (options.containsKey("fast-level")) {
+            packOptions.setFastLevel(Integer.parseInt(options.get("fast-level")));
         }
+        if (options.containsKey("entropy-threshold")) {
+            packOptions.setEntropyThreshold(
+                    Double.parseDouble(options.get("entropy-threshold")));
+        }
+        return packOptions;
+    }
+
+    // packs and unpacks everything in a directory or listed in a manifest,
+    // see BatchRunner
+    private static boolean batch(String input, String outDir, String password,
+            Map<String, String> options) {
+        try {
+            Path in = Paths.get(input);
+            List<BatchRunner.Job> jobs = Files.isDirectory(in)
+                    ? BatchRunner.fromDirectory(in, Paths.get(outDir), password)
+                    : BatchRunner.fromManifest(in, Paths.get(outDir), password);
+            int threads = options.containsKey("jobs")
+                    ? threadsOption(options, "jobs", 1)
+                    : Runtime.getRuntime().availableProcessors();
+            return new BatchRunner(extractOptions(options), packOptions(options), threads)
+                    .run(jobs);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // runs jobs sent over a socket until killed, see BackupServer
+    private static void serve(String address, Map<String, String> options) {
+        try {
+            int threads = options.containsKey("jobs")
+                    ? threadsOption(options, "jobs", 1)
+                    : Runtime.getRuntime().availableProcessors();
+            new BackupServer(extractOptions(options), packOptions(options), threads)
+                    .serve(address);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    // prints the header of each backup, the body is never read
+    private static void info(String[] args) {
+        boolean failed = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args.length > 2) {
+                System.out.println(args[i] + ":");
+            }
+            try {
+                System.out.println(AndroidBackup.readHeader(args[i]));
+            } catch (RuntimeException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                System.err.println(args[i] + ": " + cause);
+                failed = true;
+            }
+            if (args.length > 2) {
+                System.out.println();
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    // AES/CBC throughput of each JCE provider, see Ciphers
+    private static void providers() {
+        String current = Ciphers.getProviderName();
+        for (Map.Entry<String, double[]> result : Ciphers.benchmark().entrySet()) {
+            System.out.printf("%-12s decrypt %8.1f MB/s, encrypt %8.1f MB/s%s%n",
+                    result.getKey(), result.getValue()[0], result.getValue()[1],
+                    result.getKey().equals(current) ? " (default)" : "");
+        }
+    }
+
+    // --name=N, --name alone for one thread per core
+    private static int threadsOption(Map<String, String> options, String name,
+            int defaultThreads) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultThreads;
+        }
+        if (value.isEmpty()) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return Integer.parseInt(value);
+    }
+
+    // --key-cache[=DIR], off by default
+    private static KeyCache keyCacheOption(Map<String, String> options) {
+        String dir = options.get("key-cache");
+        if (dir == null) {
+            return null;
+        }
+        int size = options.containsKey("key-cache-size")
+                ? Integer.parseInt(options.get("key-cache-size")) : KeyCache.DEFAULT_MAX_ENTRIES;
+        return new KeyCache(dir.isEmpty() ? KeyCache.defaultDirectory() : dir, size);
+    }
+
+    // --stats[=json]: throughput and stage times on stderr when done,
+    // instead of the percentage
+    private static MetricsListener statsOption(Map<String, String> options) {
+        String format = options.get("stats");
+        if (format == null) {
+            return null;
+        }
+        if (!format.isEmpty() && !"json".equals(format) && !"text".equals(format)) {
+            throw new IllegalArgumentException("Unknown stats format: " + format);
+        }
+        final boolean json = "json".equals(format);
+        return new MetricsListener() {
+            @Override
+            public void progress(long bytesRead, long bodyLength) {
+            }
+
+            @Override
+            public void finished(ExtractMetrics metrics) {
+                System.err.print(json ? metrics.toJson() + "\n" : metrics.toString());
+            }
+        };
     }
 
     private static void usage() {
@@ -53,6 +331,74 @@ public class Main {
                 .println("  pack:\t\tabe pack\t<backup.tar> <backup.ab> [password]");
         System.out
                 .println("  pack for 4.4:\tabe pack-kk\t<backup.tar> <backup.ab> [password]");
+        System.out
+                .println("  unpack to dir:\tabe unpack-dir\t<backup.ab> <directory> [password]");
+        System.out
+                .println("  split by package:\tabe unpack-split\t<backup.ab> <directory> [password] [--include=PKG,...] [--exclude=PKG,...]");
+        System.out
+                .println("  pack from dir:\tabe pack-dir\t<directory> <backup.ab> [password] (pack-dir-kk for 4.4)");
+        System.out
+                .println("  index:\t\tabe index\t<backup.ab> [password]");
+        System.out
+                .println("  extract:\tabe extract\t<backup.ab> <backup.tar> [password] --entry=NAME|--package=PKG");
+        System.out
+                .println("  verify:\t\tabe verify\t<backup.ab> [password] [--manifest=FILE]");
+        System.out
+                .println("  new password:\tabe rekey\t<backup.ab> <new.ab> [password] [new-password] [--rounds=N]");
+        System.out
+                .println("  header info:\tabe info\t<backup.ab>...");
+        System.out
+                .println("  cipher speed:\tabe providers");
+        System.out
+                .println("  batch:\t\tabe batch\t<directory|manifest> <out-directory> [password] [--jobs=N]");
+        System.out
+                .println("  server:\t\tabe serve\t<port|socket-directory> [--jobs=N]");
+        System.out
+                .println("Options:");
+        System.out
+                .println("  --pipelined\tunpack with separate read, decrypt, inflate and write threads");
+        System.out
+                .println("  --decrypt-threads[=N]\tunpack: decrypt in parallel chunks (default: one per core)");
+        System.out
+                .println("  --inflate-threads[=N]\tunpack: decompress in parallel parts (default: one per core)");
+        System.out
+                .println("  --deflate-threads[=N]\tpack: compress in parallel blocks (default: one per core)");
+        System.out
+                .println("  --no-compress\tpack: store the tar uncompressed");
+        System.out
+                .println("  --adaptive\tpack: compression level per entry, fast for compressed files");
+        System.out
+                .println("  --text-level=N, --fast-level=N\tadaptive levels (default: 9, 1; 0 stores)");
+        System.out
+                .println("  --entropy-threshold=BITS\tadaptive: bits per byte of compressed files (default: 7.5)");
+        System.out
+                .println("  --stats[=json]\tunpack: print throughput and time per stage");
+        System.out
+                .println("  --journal[=MB]\tunpack: journal a checkpoint every MB of tar (default: 64)");
+        System.out
+                .println("  --resume\tunpack: continue an interrupted --journal run into the same file");
+        System.out
+                .println("  --write-threads=N\tunpack-dir, unpack-split: threads writing files (default: 4)");
+        System.out
+                .println("  --include=PKG,..., --exclude=PKG,...\tunpack-split: packages to write or leave out, * matches anything");
+        System.out
+                .println("  --read-threads=N\tpack-dir: threads reading files ahead (default: 4)");
+        System.out
+                .println("  --manifest=FILE\tverify: write the SHA-256 of each file, - for stdout");
+        System.out
+                .println("  --digest-threads=N\tverify: threads computing SHA-256 (default: one per core)");
+        System.out
+                .println("  --rounds=N\trekey: PBKDF2 rounds (default: those of the backup, at least 10000)");
+        System.out
+                .println("  --jobs=N\tbatch: jobs run at the same time, serve: threads without virtual threads (default: one per core)");
+        System.out
+                .println("  --spacing=MB\tindex: tar data between checkpoints (default: 1)");
+        System.out
+                .println("  --key-cache[=DIR]\tremember master keys of encrypted backups (default: ~/.abe/keys)");
+        System.out
+                .println("  --key-cache-size=N\tkeys kept in the cache (default: 64)");
+        System.out
+                .println("  --cipher-provider=NAME|auto\tJCE provider for AES (default: first one, auto: fastest)");
         System.out
                 .println("If the filename is `-`, then data is read from standard input");
         System.out
@@ -0,0 +1,45 @@
+package org.nick.abe;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// The random key and IV the body of an encrypted backup is encrypted with,
+// as unwrapped from the master key blob in the header.
+class MasterKey {
+
+    private final byte[] key;
+    private final byte[] iv;
+
+    MasterKey(byte[] key, byte[] iv) {
+        this.key = key;
+        this.iv = iv;
+    }
+
+    byte[] getKeyBytes() {
+        return key.clone();
+    }
+
+    SecretKey getKey() {
+        return new SecretKeySpec(key, "AES");
+    }
+
+    byte[] getIv() {
+        return iv.clone();
+    }
+
+    Cipher newDecryptCipher() throws GeneralSecurityException {
+        return newDecryptCipher(iv);
+    }
+
+    // for decrypting from the middle of the body, iv being the previous
+    // ciphertext block
+    Cipher newDecryptCipher(byte[] iv) throws GeneralSecurityException {
+        Cipher c = Ciphers.getInstance(AndroidBackup.ENCRYPTION_MECHANISM);
+        c.init(Cipher.DECRYPT_MODE, getKey(), new IvParameterSpec(iv));
+        return c;
+    }
+}
@@ -0,0 +1,56 @@
+package org.nick.abe;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Counts the bytes read through it and the time spent in the reads of the
+// stream below, including the streams that one reads from.
+class MeteredInputStream extends FilterInputStream {
+
+    private long bytes;
+    private long nanos;
+
+    MeteredInputStream(InputStream in) {
+        super(in);
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = in.read();
+        nanos += System.nanoTime() - start;
+        if (b >= 0) {
+            bytes++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int read = in.read(b, off, len);
+        nanos += System.nanoTime() - start;
+        if (read > 0) {
+            bytes += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long start = System.nanoTime();
+        long skipped = in.skip(n);
+        nanos += System.nanoTime() - start;
+        bytes += skipped;
+        return skipped;
+    }
+}
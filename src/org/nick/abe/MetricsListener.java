@@ -0,0 +1,12 @@
+package org.nick.abe;
+
+// Receives progress and, at the end, the metrics of an extraction, see
+// ExtractOptions.setMetricsListener(). Called on the extracting thread.
+public interface MetricsListener {
+
+    // body bytes read so far out of bodyLength (-1 if unknown, like on
+    // standard input); called at most once per percent
+    void progress(long bytesRead, long bodyLength);
+
+    void finished(ExtractMetrics metrics);
+}
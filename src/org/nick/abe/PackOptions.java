@@ -0,0 +1,120 @@
+package org.nick.abe;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+// Knobs for AndroidBackup.packTar(). The defaults reproduce the original
+// single-threaded behaviour.
+public class PackOptions {
+
+    private int deflateThreads = 1;
+    private boolean compressed = true;
+    private ForkJoinPool deflatePool;
+    private int readThreads = 4;
+    private boolean adaptive;
+    private int textLevel = Deflater.BEST_COMPRESSION;
+    private int fastLevel = Deflater.BEST_SPEED;
+    private double entropyThreshold = AdaptiveDeflaterOutputStream.DEFAULT_ENTROPY_THRESHOLD;
+
+    public int getDeflateThreads() {
+        return deflateThreads;
+    }
+
+    // compress blocks of the tar on this many threads, 1 to compress
+    // serially through a DeflaterOutputStream
+    public PackOptions setDeflateThreads(int deflateThreads) {
+        if (deflateThreads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + deflateThreads);
+        }
+        this.deflateThreads = deflateThreads;
+        return this;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // false writes a compressed=0 backup with the tar stored as is
+    public PackOptions setCompressed(boolean compressed) {
+        this.compressed = compressed;
+        return this;
+    }
+
+    public ForkJoinPool getDeflatePool() {
+        return deflatePool;
+    }
+
+    // compress in parallel blocks on this pool instead of one made for
+    // getDeflateThreads(). It is shared and not shut down.
+    public PackOptions setDeflatePool(ForkJoinPool deflatePool) {
+        this.deflatePool = deflatePool;
+        return this;
+    }
+
+    public int getReadThreads() {
+        return readThreads;
+    }
+
+    // packDirectory(): threads reading files ahead of the one being packed
+    public PackOptions setReadThreads(int readThreads) {
+        if (readThreads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + readThreads);
+        }
+        this.readThreads = readThreads;
+        return this;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    // choose the compression level per tar entry, see
+    // AdaptiveDeflaterOutputStream. Compresses serially, the deflate
+    // threads and pool are not used.
+    public PackOptions setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        return this;
+    }
+
+    public int getTextLevel() {
+        return textLevel;
+    }
+
+    // adaptive: the level of entries that compress well
+    public PackOptions setTextLevel(int textLevel) {
+        this.textLevel = checkLevel(textLevel);
+        return this;
+    }
+
+    public int getFastLevel() {
+        return fastLevel;
+    }
+
+    // adaptive: the level of entries that are compressed already, 0 to
+    // store them
+    public PackOptions setFastLevel(int fastLevel) {
+        this.fastLevel = checkLevel(fastLevel);
+        return this;
+    }
+
+    public double getEntropyThreshold() {
+        return entropyThreshold;
+    }
+
+    // adaptive: entries whose first 4KB have at least this many bits of
+    // entropy per byte get the fast level
+    public PackOptions setEntropyThreshold(double entropyThreshold) {
+        if (entropyThreshold < 0 || entropyThreshold > 8) {
+            throw new IllegalArgumentException("Invalid entropy threshold: " + entropyThreshold);
+        }
+        this.entropyThreshold = entropyThreshold;
+        return this;
+    }
+
+    private static int checkLevel(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        return level;
+    }
+}
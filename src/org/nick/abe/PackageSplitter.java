@@ -0,0 +1,362 @@
+package org.nick.abe;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+// Splits the tar stream of a backup into one tar per package while it is
+// decoded: apps/<package>/... goes to <package>.tar, anything else to a tar
+// named after its top directory, like shared.tar. Package names always
+// contain a dot, so the two never clash. Entries whose package or top
+// directory is empty, . or .. have no tar to go to and are skipped.
+//
+// Like DirectoryExtractor, the calling thread only parses the tar and copies
+// entry data into a fixed number of buffers. Each package has a writer that
+// works through its entries in order on a pool, so packages are written in
+// parallel. A package's file is closed when the stream moves on to another
+// one, and appended to should it come back. Entries of packages left out by
+// the filters are skipped by TarReader without being buffered.
+//
+// As any package may come back until the end of the stream, none of the
+// tars is complete before then: if splitting fails, all of them are closed
+// and deleted.
+class PackageSplitter {
+
+    static final int CHUNK_SIZE = 256 * 1024;
+    static final int CHUNKS_IN_FLIGHT = 64;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path root;
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+    private final ExecutorService writers;
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final Map<String, PackageWriter> packages = new LinkedHashMap<>();
+
+    private long entries;
+    private long skipped;
+    private long bytes;
+
+    // includes and excludes are package names, * matching anything; an
+    // empty includes takes all packages
+    PackageSplitter(Path root, Collection<String> includes, Collection<String> excludes,
+            int threads) {
+        this.root = root.toAbsolutePath().normalize();
+        this.includes = patterns(includes);
+        this.excludes = patterns(excludes);
+        this.writers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < CHUNKS_IN_FLIGHT; i++) {
+            free.add(new byte[CHUNK_SIZE]);
+        }
+    }
+
+    int getPackageCount() {
+        return packages.size();
+    }
+
+    long getEntryCount() {
+        return entries;
+    }
+
+    // entries left out by the filters or without a valid package
+    long getSkippedCount() {
+        return skipped;
+    }
+
+    long getByteCount() {
+        return bytes;
+    }
+
+    void split(TarReader tar) throws IOException {
+        boolean complete = false;
+        try {
+            splitEntries(tar);
+            complete = true;
+        } finally {
+            if (!complete) {
+                abort();
+            }
+        }
+    }
+
+    private void splitEntries(TarReader tar) throws IOException {
+        try {
+            Files.createDirectories(root);
+            PackageWriter current = null;
+            TarEntry entry;
+            while ((entry = tar.next()) != null) {
+                checkFailure();
+                String key = key(entry);
+                if (key == null || !isIncluded(key)) {
+                    skipped++;
+                    continue;
+                }
+                PackageWriter writer = packages.get(key);
+                if (writer == null) {
+                    writer = new PackageWriter(resolve(key));
+                    packages.put(key, writer);
+                }
+                if (current != null && current != writer) {
+                    current.add(new Chunk(null, free.take(), 0, Chunk.SUSPEND));
+                }
+                current = writer;
+                splitEntry(tar, entry, writer);
+            }
+            for (PackageWriter writer : packages.values()) {
+                writer.add(new Chunk(null, free.take(), 0, Chunk.FINISH));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while splitting", e);
+        } finally {
+            writers.shutdown();
+        }
+        try {
+            while (!writers.awaitTermination(1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            writers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while splitting", e);
+        }
+        checkFailure();
+    }
+
+    // Stops the writers and deletes their tars once none of them is running
+    // any more, so that nothing is left open.
+    private void abort() {
+        writers.shutdownNow();
+        try {
+            while (!writers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // a write in progress
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PackageWriter writer : packages.values()) {
+            writer.discard();
+        }
+    }
+
+    // the header goes with the first chunk of data, if there is any
+    private void splitEntry(TarReader tar, TarEntry entry, PackageWriter writer)
+            throws IOException, InterruptedException {
+        long size = entry.isFile() ? entry.getSize() : 0;
+        long position = 0;
+        TarEntry header = entry;
+        do {
+            byte[] chunk = free.take();
+            int length = 0;
+            int n;
+            while (length < chunk.length && position + length < size
+                    && (n = tar.read(chunk, length, chunk.length - length)) > 0) {
+                length += n;
+            }
+            writer.add(new Chunk(header, chunk, length, Chunk.DATA));
+            header = null;
+            position += length;
+        } while (position < size);
+        entries++;
+        bytes += size;
+    }
+
+    // the package of apps/<package>/..., the top directory of anything
+    // else, null if that can't be the name of a tar
+    private static String key(TarEntry entry) {
+        String key = entry.getPackageName();
+        if (key == null) {
+            String name = entry.getName();
+            int slash = name.indexOf('/');
+            key = slash < 0 ? name : name.substring(0, slash);
+        }
+        if (key.isEmpty() || key.equals(".") || key.equals("..")) {
+            return null;
+        }
+        return key;
+    }
+
+    private boolean isIncluded(String key) {
+        boolean included = includes.isEmpty();
+        for (Pattern include : includes) {
+            included |= include.matcher(key).matches();
+        }
+        for (Pattern exclude : excludes) {
+            included &= !exclude.matcher(key).matches();
+        }
+        return included;
+    }
+
+    private static List<Pattern> patterns(Collection<String> globs) {
+        List<Pattern> patterns = new ArrayList<>();
+        if (globs != null) {
+            for (String glob : globs) {
+                StringBuilder regex = new StringBuilder();
+                for (String part : glob.split("\\*", -1)) {
+                    if (regex.length() > 0) {
+                        regex.append(".*");
+                    }
+                    regex.append(Pattern.quote(part));
+                }
+                patterns.add(Pattern.compile(regex.toString()));
+            }
+        }
+        return patterns;
+    }
+
+    // package names come from the backup, so make sure the tar ends up in
+    // the target directory
+    private Path resolve(String key) throws IOException {
+        Path target = root.resolve(key + ".tar").normalize();
+        if (!root.equals(target.getParent())) {
+            throw new IOException("Refusing to write " + key + ".tar outside of " + root);
+        }
+        return target;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure.get();
+        if (t != null) {
+            writers.shutdownNow();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            throw new IOException("Writing failed", t);
+        }
+    }
+
+    // Something for a package writer to do. Every chunk holds a buffer,
+    // even if it has no data, so that the buffers bound the work queued.
+    private static class Chunk {
+
+        static final int DATA = 0;
+        // close the file, the stream has moved on to another package
+        static final int SUSPEND = 1;
+        // write the end-of-archive marker and close the file
+        static final int FINISH = 2;
+
+        // the entry to start, null to continue the current one
+        final TarEntry entry;
+        final byte[] data;
+        final int length;
+        final int op;
+
+        Chunk(TarEntry entry, byte[] data, int length, int op) {
+            this.entry = entry;
+            this.data = data;
+            this.length = length;
+            this.op = op;
+        }
+    }
+
+    // The tar of one package, written in order by at most one thread at a
+    // time: whoever adds the first pending chunk schedules a drain.
+    private class PackageWriter implements Runnable {
+
+        private final Path path;
+        private final ConcurrentLinkedQueue<Chunk> chunks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private OutputStream out;
+        private TarWriter tar;
+        private boolean created;
+
+        PackageWriter(Path path) {
+            this.path = path;
+        }
+
+        void add(Chunk chunk) {
+            chunks.add(chunk);
+            if (pending.getAndIncrement() == 0) {
+                writers.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                Chunk chunk = chunks.poll();
+                try {
+                    if (failure.get() == null) {
+                        write(chunk);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    free.add(chunk.data);
+                }
+            } while (pending.decrementAndGet() > 0);
+        }
+
+        private void write(Chunk chunk) throws IOException {
+            if (chunk.op == Chunk.SUSPEND) {
+                close();
+                return;
+            }
+            if (tar == null) {
+                // the first time it is created, then appended to
+                out = new BufferedOutputStream(new FileOutputStream(path.toFile(), created),
+                        BUFFER_SIZE);
+                tar = new TarWriter(out);
+                created = true;
+            }
+            if (chunk.op == Chunk.FINISH) {
+                tar.finish();
+                close();
+                return;
+            }
+            TarEntry entry = chunk.entry;
+            if (entry != null) {
+                tar.putEntry(entry.getName(), entry.isFile() ? TarEntry.TYPE_FILE
+                        : entry.getType(), entry.isFile() ? entry.getSize() : 0,
+                        entry.getMode(), entry.getModTime(), entry.getLinkName());
+            }
+            if (chunk.length > 0) {
+                tar.write(chunk.data, 0, chunk.length);
+            }
+        }
+
+        private void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+                tar = null;
+            }
+        }
+
+        // after the writers have stopped
+        void discard() {
+            try {
+                close();
+            } catch (IOException e) {
+                // deleted anyway
+            }
+            out = null;
+            if (created) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.println("Could not delete " + path + ": " + e);
+                }
+            }
+        }
+    }
+}
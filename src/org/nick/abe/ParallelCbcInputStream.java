@@ -0,0 +1,203 @@
+package org.nick.abe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+// Decrypts an AES/CBC/PKCS5Padding stream by splitting the ciphertext into
+// large chunks and decrypting several of them at once. In CBC each plaintext
+// block only depends on its own ciphertext block and the one before it, so
+// every chunk can be decrypted on its own with the last ciphertext block of
+// the previous chunk as IV. Padding is only stripped from the final chunk.
+class ParallelCbcInputStream extends InputStream {
+
+    static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int BLOCK_SIZE = 16;
+    private static final String CHUNK_MECHANISM = "AES/CBC/NoPadding";
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Ciphers.getInstance(CHUNK_MECHANISM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final InputStream in;
+    private final SecretKey key;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final int maxInFlight;
+
+    // last ciphertext block read so far, the IV for the next chunk
+    private byte[] iv;
+    private boolean eof;
+    private final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+    private final Deque<byte[]> free = new ArrayDeque<>();
+
+    private byte[] current;
+    private int pos;
+    private int limit;
+
+    ParallelCbcInputStream(InputStream in, SecretKey key, byte[] iv, ForkJoinPool pool) {
+        this(in, key, iv, pool, DEFAULT_CHUNK_SIZE);
+    }
+
+    ParallelCbcInputStream(InputStream in, SecretKey key, byte[] iv, ForkJoinPool pool,
+            int chunkSize) {
+        if (chunkSize <= 0 || chunkSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Chunk size must be a multiple of "
+                    + BLOCK_SIZE + ": " + chunkSize);
+        }
+        this.in = in;
+        this.key = key;
+        this.iv = iv.clone();
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        // keep every worker busy and one chunk more so that the
+        // final chunk is always known by the time it is consumed
+        this.maxInFlight = pool.getParallelism() + 2;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (pos == limit) {
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<Chunk> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        in.close();
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (current != null) {
+            free.push(current);
+            current = null;
+        }
+        while (!eof && pending.size() < maxInFlight) {
+            submitChunk();
+        }
+        Future<Chunk> next = pending.poll();
+        if (next == null) {
+            return false;
+        }
+
+        Chunk chunk;
+        try {
+            chunk = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decrypting", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Decryption failed", e.getCause());
+        }
+        current = chunk.data;
+        pos = 0;
+        limit = chunk.length;
+        if (eof && pending.isEmpty()) {
+            limit = stripPadding(current, limit);
+        }
+        return true;
+    }
+
+    private void submitChunk() throws IOException {
+        byte[] data = free.isEmpty() ? new byte[chunkSize] : free.pop();
+        int length = 0;
+        int read;
+        while (length < chunkSize
+                && (read = in.read(data, length, chunkSize - length)) > 0) {
+            length += read;
+        }
+        if (length < chunkSize) {
+            eof = true;
+        }
+        if (length == 0) {
+            free.push(data);
+            return;
+        }
+        if (length % BLOCK_SIZE != 0) {
+            throw new IOException("Ciphertext length is not a multiple of "
+                    + BLOCK_SIZE + " bytes");
+        }
+
+        final byte[] chunkIv = iv;
+        iv = Arrays.copyOfRange(data, length - BLOCK_SIZE, length);
+        final Chunk chunk = new Chunk(data, length);
+        pending.add(pool.submit(new Callable<Chunk>() {
+            @Override
+            public Chunk call() throws Exception {
+                Cipher c = CIPHERS.get();
+                c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(chunkIv));
+                // in place, the JCE guarantees this is safe
+                c.doFinal(chunk.data, 0, chunk.length, chunk.data, 0);
+                return chunk;
+            }
+        }));
+    }
+
+    private static class Chunk {
+
+        final byte[] data;
+        final int length;
+
+        Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private static int stripPadding(byte[] chunk, int length) throws IOException {
+        int pad = chunk[length - 1] & 0xff;
+        boolean valid = pad >= 1 && pad <= BLOCK_SIZE && pad <= length;
+        for (int i = length - pad; valid && i < length; i++) {
+            valid = (chunk[i] & 0xff) == pad;
+        }
+        if (!valid) {
+            throw new IOException(new BadPaddingException("Invalid PKCS5 padding"));
+        }
+        return length - pad;
+    }
+}
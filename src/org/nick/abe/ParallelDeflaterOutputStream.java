@@ -0,0 +1,238 @@
+package org.nick.abe;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+// Writes a zlib stream the way pigz does: the input is cut into blocks that
+// are deflated concurrently, each primed with the last 32 KB of the block
+// before it as preset dictionary. Every block but the last ends with a sync
+// flush, which leaves the compressed data byte aligned, so the raw outputs
+// can simply be concatenated between a zlib header and an Adler-32 trailer.
+// The result is a single standard zlib stream that InflaterInputStream (and
+// so BackupManagerService) reads like any other.
+class ParallelDeflaterOutputStream extends FilterOutputStream {
+
+    static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final int level;
+    private final ForkJoinPool pool;
+    private final int blockSize;
+    private final int maxInFlight;
+
+    private final Adler32 adler = new Adler32();
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Deque<Future<Block>> pending = new ArrayDeque<>();
+    private final Deque<byte[]> free = new ArrayDeque<>();
+
+    private byte[] block;
+    private int count;
+    private byte[] dictionary;
+    private boolean headerWritten;
+    private boolean closed;
+
+    ParallelDeflaterOutputStream(OutputStream out, int level, ForkJoinPool pool) {
+        this(out, level, pool, DEFAULT_BLOCK_SIZE);
+    }
+
+    ParallelDeflaterOutputStream(OutputStream out, int level, ForkJoinPool pool, int blockSize) {
+        super(out);
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Block size must be at least "
+                    + DICTIONARY_SIZE + ": " + blockSize);
+        }
+        this.level = level;
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.maxInFlight = 2 * pool.getParallelism();
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                submit(false);
+            }
+        }
+    }
+
+    // Like DeflaterOutputStream with syncFlush, makes everything written so
+    // far decodable. Blocks written before a flush will be shorter.
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            submit(false);
+        }
+        drain(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            submit(true);
+            drain(0);
+            long checksum = adler.getValue();
+            out.write(new byte[] {
+                    (byte) (checksum >>> 24), (byte) (checksum >>> 16),
+                    (byte) (checksum >>> 8), (byte) checksum
+            });
+            out.flush();
+        } finally {
+            closed = true;
+            for (Future<Block> f : pending) {
+                f.cancel(true);
+            }
+            Deflater d;
+            while ((d = deflaters.poll()) != null) {
+                d.end();
+            }
+            out.close();
+        }
+    }
+
+    private void submit(final boolean last) throws IOException {
+        if (!headerWritten) {
+            writeHeader();
+        }
+        final byte[] data = block;
+        final int length = count;
+        final byte[] dict = dictionary;
+        adler.update(data, 0, length);
+        dictionary = nextDictionary(dict, data, length);
+
+        pending.add(pool.submit(new Callable<Block>() {
+            @Override
+            public Block call() {
+                return deflate(data, length, dict, last);
+            }
+        }));
+        block = free.isEmpty() ? new byte[blockSize] : free.pop();
+        count = 0;
+        drain(maxInFlight);
+    }
+
+    // the last 32 KB of everything submitted so far
+    private static byte[] nextDictionary(byte[] previous, byte[] data, int length) {
+        if (length >= DICTIONARY_SIZE) {
+            return Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+        }
+        // only after a flush, keep part of the previous dictionary
+        int keep = previous == null ? 0 : Math.min(previous.length, DICTIONARY_SIZE - length);
+        byte[] dict = new byte[keep + length];
+        if (keep > 0) {
+            System.arraycopy(previous, previous.length - keep, dict, 0, keep);
+        }
+        System.arraycopy(data, 0, dict, keep, length);
+        return dict;
+    }
+
+    private Block deflate(byte[] data, int length, byte[] dict, boolean last) {
+        Deflater def = deflaters.poll();
+        if (def == null) {
+            def = new Deflater(level, true);
+        }
+        try {
+            if (dict != null && dict.length > 0) {
+                def.setDictionary(dict);
+            }
+            def.setInput(data, 0, length);
+            byte[] result = new byte[length + (length >> 3) + 64];
+            int size = 0;
+            if (last) {
+                def.finish();
+                while (!def.finished()) {
+                    if (size == result.length) {
+                        result = Arrays.copyOf(result, result.length * 2);
+                    }
+                    size += def.deflate(result, size, result.length - size);
+                }
+            } else {
+                // a full output buffer means there may be more to come
+                do {
+                    if (size == result.length) {
+                        result = Arrays.copyOf(result, result.length * 2);
+                    }
+                    size += def.deflate(result, size, result.length - size, Deflater.SYNC_FLUSH);
+                } while (size == result.length);
+            }
+            return new Block(data, result, size);
+        } finally {
+            def.reset();
+            deflaters.add(def);
+        }
+    }
+
+    // writes completed blocks in order until at most keep are outstanding
+    private void drain(int keep) throws IOException {
+        while (pending.size() > keep) {
+            Block b;
+            try {
+                b = pending.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing");
+            } catch (ExecutionException e) {
+                throw new IOException("Compression failed", e.getCause());
+            }
+            out.write(b.compressed, 0, b.size);
+            free.push(b.data);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        // CMF: deflate with a 32K window, FLG: compression level hint and
+        // check bits, no preset dictionary for the stream as a whole
+        int cmf = 0x78;
+        int flevel = level == Deflater.DEFAULT_COMPRESSION ? 2
+                : level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flg = flevel << 6;
+        flg += (31 - (cmf * 256 + flg) % 31) % 31;
+        out.write(cmf);
+        out.write(flg);
+        headerWritten = true;
+    }
+
+    private static class Block {
+
+        final byte[] data;
+        final byte[] compressed;
+        final int size;
+
+        Block(byte[] data, byte[] compressed, int size) {
+            this.data = data;
+            this.compressed = compressed;
+            this.size = size;
+        }
+    }
+}
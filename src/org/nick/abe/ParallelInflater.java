@@ -0,0 +1,476 @@
+package org.nick.abe;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Adler32;
+
+// Inflates the zlib stream of a backup on several threads and writes the
+// result in order.
+//
+// Without an index, the compressed stream is cut into chunks and each chunk
+// is decoded by SegmentInflater from the first block header found in it,
+// before the chunks in front of it are done. The caller thread then checks
+// that the chunks join up: the decoder of one chunk has to end exactly where
+// the next one started. If it doesn't (no block header found, or a false
+// positive), that chunk is decoded again by the caller thread, now with the
+// real window. This works for any zlib stream, including those of stock
+// Android backups.
+//
+// The output of the chunks in flight is held in memory, so it is taken from
+// one budget of bytes, a quarter of the heap by default. A chunk that
+// inflates to more than SegmentInflater.MAX_OUTPUT bytes, or to more than
+// the budget has left, is not held in memory: from there on the rest of the
+// stream is inflated by RawInflater on the caller thread.
+//
+// With an index, the checkpoints are known block boundaries and each
+// segment between two of them is inflated by its own java.util.zip.Inflater.
+// Segments longer than MAX_OUTPUT, or than the budget has left when they
+// come up, are inflated by the caller thread as they are written.
+class ParallelInflater {
+
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    // how far the decoder of a chunk can read into the next one to finish its
+    // last block; zlib blocks are much smaller
+    static final int OVERLAP = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private ParallelInflater() {
+    }
+
+    private static class Chunk {
+
+        final byte[] data;
+        final int length;
+        final long baseBit;
+        // the bit offset at which the next chunk starts
+        final long stopBit;
+
+        Chunk(byte[] data, int length, long baseBit, long stopBit) {
+            this.data = data;
+            this.length = length;
+            this.baseBit = baseBit;
+            this.stopBit = stopBit;
+        }
+    }
+
+    private static class Task {
+
+        final Chunk chunk;
+        final Future<SegmentInflater.Segment> result;
+
+        Task(Chunk chunk, Future<SegmentInflater.Segment> result) {
+            this.chunk = chunk;
+            this.result = result;
+        }
+    }
+
+    // Inflates the zlib stream in, returns the number of bytes written.
+    static long inflate(InputStream in, OutputStream out, ExecutorService pool,
+            int parallelism) throws IOException {
+        return inflate(in, out, pool, parallelism, defaultBudget());
+    }
+
+    // budget is the output in bytes the chunks in flight may hold together
+    static long inflate(InputStream in, OutputStream out, ExecutorService pool,
+            int parallelism, int budget) throws IOException {
+        Deque<Task> tasks = new ArrayDeque<>();
+        State state = new State(new Semaphore(budget));
+        try {
+            byte[] current = readChunk(in);
+            int currentLength = length(current);
+            if (currentLength < 2) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            int cmf = current[0] & 0xff;
+            int flg = current[1] & 0xff;
+            if ((cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0 || (flg & 0x20) != 0) {
+                throw new IOException("Invalid zlib header");
+            }
+
+            long offset = 0;
+            boolean first = true;
+            while (current != null) {
+                byte[] next = currentLength < CHUNK_SIZE ? null : readChunk(in);
+                int nextLength = length(next);
+                if (nextLength == 0) {
+                    next = null;
+                }
+
+                // this chunk and the beginning of the next one
+                byte[] data = current;
+                int dataLength = currentLength;
+                if (next != null) {
+                    int overlap = Math.min(OVERLAP, nextLength);
+                    data = Arrays.copyOf(current, currentLength + overlap);
+                    System.arraycopy(next, 0, data, currentLength, overlap);
+                    dataLength += overlap;
+                }
+                long baseBit = offset * 8;
+                long stopBit = next == null ? Long.MAX_VALUE : (offset + currentLength) * 8;
+                Chunk chunk = new Chunk(data, dataLength, baseBit, stopBit);
+                tasks.add(new Task(chunk, pool.submit(decode(chunk, first, state.budget))));
+
+                while (tasks.size() > parallelism) {
+                    Task task = tasks.removeFirst();
+                    if (!join(task, state, out)) {
+                        return inflateRest(task, tasks, next, nextLength, in, state, out);
+                    }
+                }
+                offset += currentLength;
+                current = next;
+                currentLength = nextLength;
+                first = false;
+            }
+            while (!tasks.isEmpty()) {
+                Task task = tasks.removeFirst();
+                if (!join(task, state, out)) {
+                    return inflateRest(task, tasks, null, 0, in, state, out);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while inflating", e);
+        } finally {
+            for (Task task : tasks) {
+                task.result.cancel(true);
+            }
+        }
+        if (!state.finished) {
+            throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+        return state.written;
+    }
+
+    // what the caller thread knows about the output so far
+    private static class State {
+
+        final Semaphore budget;
+        long nextBit = 16;
+        byte[] window = new byte[0];
+        final Adler32 adler = new Adler32();
+        long written;
+        boolean finished;
+
+        State(Semaphore budget) {
+            this.budget = budget;
+        }
+    }
+
+    static int defaultBudget() {
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    private static Callable<SegmentInflater.Segment> decode(final Chunk chunk,
+            final boolean first, final Semaphore budget) {
+        return new Callable<SegmentInflater.Segment>() {
+            @Override
+            public SegmentInflater.Segment call() {
+                SegmentInflater inflater = new SegmentInflater(chunk.data, chunk.length,
+                        chunk.baseBit, budget);
+                if (first) {
+                    try {
+                        // right after the zlib header, with nothing before it
+                        return inflater.inflate(16, chunk.stopBit, new byte[0]);
+                    } catch (IOException e) {
+                        // decoded again by the caller, which reports the error
+                        return null;
+                    }
+                }
+                long from = chunk.baseBit;
+                long to = Math.min(chunk.stopBit, chunk.baseBit + (long) chunk.length * 8);
+                while (!Thread.currentThread().isInterrupted()) {
+                    long start = inflater.findStart(from, to);
+                    if (start < 0) {
+                        return null;
+                    }
+                    try {
+                        return inflater.inflate(start, chunk.stopBit, null);
+                    } catch (SegmentInflater.TooLargeException e) {
+                        // left to the caller
+                        return null;
+                    } catch (IOException e) {
+                        // not a block boundary after all
+                        from = start + 1;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    // Writes the output of the chunk, returns false if it inflates to too
+    // much to hold in memory.
+    private static boolean join(Task task, State state, OutputStream out)
+            throws IOException, InterruptedException {
+        SegmentInflater.Segment segment;
+        try {
+            segment = task.result.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Inflating failed", e.getCause());
+        }
+        Chunk chunk = task.chunk;
+        if (state.finished || state.nextBit >= chunk.stopBit) {
+            // the previous chunk already decoded this one
+            release(segment);
+            return true;
+        }
+        try {
+            if (segment != null && segment.getStartBit() > state.nextBit) {
+                // blocks findStart() does not look for, like fixed Huffman ones
+                append(new SegmentInflater(chunk.data, chunk.length, chunk.baseBit,
+                        state.budget).inflate(state.nextBit, segment.getStartBit(),
+                        state.window), state, out);
+                if (state.finished) {
+                    release(segment);
+                    return true;
+                }
+            }
+            if (segment == null || !SegmentInflater.isSameStart(chunk.data, chunk.length,
+                    chunk.baseBit, segment.getStartBit(), state.nextBit)) {
+                release(segment);
+                segment = new SegmentInflater(chunk.data, chunk.length, chunk.baseBit,
+                        state.budget).inflate(state.nextBit, chunk.stopBit, state.window);
+            }
+        } catch (SegmentInflater.TooLargeException e) {
+            release(segment);
+            return false;
+        }
+        append(segment, state, out);
+        return true;
+    }
+
+    private static void release(SegmentInflater.Segment segment) {
+        if (segment != null) {
+            segment.release();
+        }
+    }
+
+    // Inflates the rest of the stream from state.nextBit on with RawInflater,
+    // which takes no more memory however much the data inflates to. Its input
+    // is what is left of the chunk, the chunks read after it and the rest of
+    // in. Returns the number of bytes written in total.
+    private static long inflateRest(Task task, Deque<Task> tasks, byte[] next,
+            int nextLength, InputStream in, State state, OutputStream out)
+            throws IOException {
+        List<InputStream> parts = new ArrayList<>();
+        parts.add(remainder(task.chunk, state.nextBit));
+        for (Task later : tasks) {
+            later.result.cancel(true);
+            parts.add(remainder(later.chunk, later.chunk.baseBit));
+        }
+        tasks.clear();
+        if (next != null) {
+            parts.add(new ByteArrayInputStream(next, 0, nextLength));
+        }
+        parts.add(in);
+        RawInflater inflater = new RawInflater(
+                new SequenceInputStream(Collections.enumeration(parts)), state.nextBit,
+                state.written, state.window, state.adler.getValue(), null);
+        long written = state.written;
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = inflater.read(buf, 0, buf.length)) >= 0) {
+            out.write(buf, 0, n);
+            written += n;
+        }
+        return written;
+    }
+
+    // the bytes of a chunk from the one holding bit up to the next chunk
+    private static InputStream remainder(Chunk chunk, long bit) {
+        int from = (int) ((bit - chunk.baseBit) >>> 3);
+        int to = chunk.stopBit == Long.MAX_VALUE ? chunk.length
+                : (int) ((chunk.stopBit - chunk.baseBit) >>> 3);
+        return new ByteArrayInputStream(chunk.data, from, to - from);
+    }
+
+    private static void append(SegmentInflater.Segment segment, State state,
+            OutputStream out) throws IOException {
+        AdlerOutputStream checked = new AdlerOutputStream(out, state.adler);
+        try {
+            state.window = segment.write(state.window, checked);
+        } finally {
+            segment.release();
+        }
+        state.written += segment.getLength();
+        state.nextBit = segment.getEndBit();
+        if (segment.isLast()) {
+            if (segment.getTrailer() != state.adler.getValue()) {
+                throw new IOException("Adler-32 checksum mismatch");
+            }
+            state.finished = true;
+        }
+    }
+
+    // a segment between two checkpoints of an index
+    private static class IndexedSegment {
+
+        final BackupIndex.Checkpoint checkpoint;
+        final long length;
+        // null if the segment is too long to hold in memory
+        final Future<byte[]> result;
+        // taken from the budget for the result, given back once written
+        final int reserved;
+
+        IndexedSegment(BackupIndex.Checkpoint checkpoint, long length,
+                Future<byte[]> result, int reserved) {
+            this.checkpoint = checkpoint;
+            this.length = length;
+            this.result = result;
+            this.reserved = reserved;
+        }
+    }
+
+    // Inflates the segments between the checkpoints of an index, returns
+    // the number of bytes written.
+    static long inflate(IndexedReader reader, OutputStream out, ExecutorService pool,
+            int parallelism) throws IOException {
+        return inflate(reader, out, pool, parallelism, defaultBudget());
+    }
+
+    static long inflate(final IndexedReader reader, OutputStream out, ExecutorService pool,
+            int parallelism, int budget) throws IOException {
+        Semaphore outputLeft = new Semaphore(budget);
+        final List<BackupIndex.Checkpoint> checkpoints = reader.getIndex().getCheckpoints();
+        final long tarLength = reader.getIndex().getTarLength();
+        Deque<IndexedSegment> segments = new ArrayDeque<>();
+        long written = 0;
+        try {
+            for (int i = 0; i < checkpoints.size(); i++) {
+                final BackupIndex.Checkpoint cp = checkpoints.get(i);
+                long end = i + 1 < checkpoints.size()
+                        ? checkpoints.get(i + 1).getOutputOffset() : tarLength;
+                final long length = end - cp.getOutputOffset();
+                Future<byte[]> result = null;
+                int reserved = 0;
+                if (length <= SegmentInflater.MAX_OUTPUT && outputLeft.tryAcquire((int) length)) {
+                    reserved = (int) length;
+                    result = pool.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            byte[] segment = new byte[(int) length];
+                            try (InputStream in = reader.openCheckpoint(cp)) {
+                                int read = 0;
+                                while (read < segment.length) {
+                                    int n = in.read(segment, read, segment.length - read);
+                                    if (n < 0) {
+                                        throw new EOFException(
+                                                "Unexpected end of ZLIB input stream");
+                                    }
+                                    read += n;
+                                }
+                            }
+                            return segment;
+                        }
+                    });
+                }
+                segments.add(new IndexedSegment(cp, length, result, reserved));
+                while (segments.size() > parallelism) {
+                    written += writeSegment(segments.removeFirst(), reader, out, outputLeft);
+                }
+            }
+            while (!segments.isEmpty()) {
+                written += writeSegment(segments.removeFirst(), reader, out, outputLeft);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while inflating", e);
+        } finally {
+            for (IndexedSegment segment : segments) {
+                if (segment.result != null) {
+                    segment.result.cancel(true);
+                }
+            }
+        }
+        return written;
+    }
+
+    private static long writeSegment(IndexedSegment segment, IndexedReader reader,
+            OutputStream out, Semaphore budget) throws IOException, InterruptedException {
+        if (segment.result == null) {
+            // inflated here, as it is written
+            try (InputStream in = reader.openCheckpoint(segment.checkpoint)) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                long left = segment.length;
+                while (left > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n < 0) {
+                        throw new EOFException("Unexpected end of ZLIB input stream");
+                    }
+                    out.write(buf, 0, n);
+                    left -= n;
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            return segment.length;
+        }
+        try {
+            byte[] data = segment.result.get();
+            out.write(data);
+            return data.length;
+        } catch (ExecutionException e) {
+            throw new IOException("Inflating failed", e.getCause());
+        } finally {
+            budget.release(segment.reserved);
+        }
+    }
+
+    private static byte[] readChunk(InputStream in) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int read = 0;
+        while (read < chunk.length) {
+            int n = in.read(chunk, read, chunk.length - read);
+            if (n < 0) {
+                return Arrays.copyOf(chunk, read);
+            }
+            read += n;
+        }
+        return chunk;
+    }
+
+    private static int length(byte[] chunk) {
+        return chunk == null ? 0 : chunk.length;
+    }
+
+    // feeds everything written to the Adler-32 of the zlib trailer
+    private static class AdlerOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final Adler32 adler;
+
+        AdlerOutputStream(OutputStream out, Adler32 adler) {
+            this.out = out;
+            this.adler = adler;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            adler.update(b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            adler.update(b, off, len);
+            out.write(b, off, len);
+        }
+    }
+}
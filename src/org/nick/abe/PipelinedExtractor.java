@@ -0,0 +1,392 @@
+package org.nick.abe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import javax.crypto.Cipher;
+
+// Decodes a backup body with the read, decrypt, inflate and write stages
+// each running on their own thread. Stages are connected by bounded queues
+// and every link owns a fixed pool of buffers that are handed back upstream
+// once consumed, so memory use does not depend on the size of the backup.
+class PipelinedExtractor {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int QUEUE_DEPTH = 8;
+
+    // Cipher.update() may emit up to one buffered block more than it is given
+    private static final int CIPHER_SLACK = 32;
+
+    private final InputStream in;
+    private final Cipher cipher;
+    private final boolean compressed;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private Thread writer;
+    private final List<StageStats> stats = new ArrayList<>();
+
+    // in must be positioned at the start of the body; cipher is null for
+    // unencrypted backups and otherwise already initialized for decryption
+    PipelinedExtractor(InputStream in, Cipher cipher, boolean compressed) {
+        this.in = in;
+        this.cipher = cipher;
+        this.compressed = compressed;
+    }
+
+    // raw (still encrypted and compressed) body bytes consumed so far
+    long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    List<StageStats> getStageStats() {
+        return stats;
+    }
+
+    // Runs the pipeline to completion, with the write stage on the calling
+    // thread. progress, if not null, is invoked after each chunk is written.
+    long run(OutputStream out, Runnable progress) throws IOException {
+        writer = Thread.currentThread();
+        Link link = new Link(CHUNK_SIZE);
+        start(new ReadStage(link));
+        if (cipher != null) {
+            Link decrypted = new Link(CHUNK_SIZE + CIPHER_SLACK);
+            start(new DecryptStage(link, decrypted));
+            link = decrypted;
+        }
+        if (compressed) {
+            Link inflated = new Link(CHUNK_SIZE);
+            start(new InflateStage(link, inflated));
+            link = inflated;
+        }
+
+        StageStats writeStats = new StageStats("write");
+        stats.add(writeStats);
+        long written = 0;
+        try {
+            for (Chunk c = link.take(writeStats); c != Chunk.EOF; c = link.take(writeStats)) {
+                out.write(c.data, 0, c.length);
+                writeStats.add(c.length);
+                written += c.length;
+                link.recycle(c);
+                if (progress != null) {
+                    progress.run();
+                }
+            }
+        } catch (InterruptedException e) {
+            // another stage failed and woke us up, reported below
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        Throwable t = failure.get();
+        if (t != null && !(t instanceof InterruptedException)) {
+            // clear the wake-up call a failing stage may have sent us
+            Thread.interrupted();
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof InterruptedException) {
+            throw new InterruptedIOException("Pipeline interrupted");
+        } else if (t != null) {
+            throw new IOException("Pipeline stage failed", t);
+        }
+        return written;
+    }
+
+    private void start(Stage stage) {
+        stats.add(stage.stats);
+        Thread t = new Thread(stage, "abe-" + stage.stats.getName());
+        t.setDaemon(true);
+        threads.add(t);
+        t.start();
+    }
+
+    private void fail(Throwable t) {
+        if (failure.compareAndSet(null, t)) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            writer.interrupt();
+        }
+    }
+
+    // Per-stage counters. starved is the time spent waiting for input from
+    // the previous stage, blocked the time spent waiting for the next stage
+    // to hand back a free buffer. The slowest stage is the one that is
+    // neither starved nor blocked.
+    static class StageStats {
+
+        private final String name;
+        private long bytes;
+        private long chunks;
+        private long starvedNanos;
+        private long blockedNanos;
+
+        StageStats(String name) {
+            this.name = name;
+        }
+
+        void add(int length) {
+            bytes += length;
+            chunks++;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        long getChunks() {
+            return chunks;
+        }
+
+        long getStarvedNanos() {
+            return starvedNanos;
+        }
+
+        long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %12d bytes %8d chunks  starved %6d ms  blocked %6d ms",
+                    name, bytes, chunks, starvedNanos / 1000000, blockedNanos / 1000000);
+        }
+    }
+
+    private static class Chunk {
+
+        static final Chunk EOF = new Chunk(0);
+
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    // A queue of filled chunks travelling downstream plus the pool of free
+    // chunks travelling back upstream. The filled queue can hold the whole
+    // pool and the EOF marker, so publishing never blocks.
+    private static class Link {
+
+        private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(QUEUE_DEPTH + 1);
+        private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+
+        Link(int chunkSize) {
+            for (int i = 0; i < QUEUE_DEPTH; i++) {
+                free.add(new Chunk(chunkSize));
+            }
+        }
+
+        Chunk acquire(StageStats stats) throws InterruptedException {
+            Chunk c = free.poll();
+            if (c == null) {
+                long start = System.nanoTime();
+                c = free.take();
+                stats.blockedNanos += System.nanoTime() - start;
+            }
+            c.length = 0;
+            return c;
+        }
+
+        void publish(Chunk c) {
+            filled.add(c);
+        }
+
+        Chunk take(StageStats stats) throws InterruptedException {
+            Chunk c = filled.poll();
+            if (c == null) {
+                long start = System.nanoTime();
+                c = filled.take();
+                stats.starvedNanos += System.nanoTime() - start;
+            }
+            return c;
+        }
+
+        void recycle(Chunk c) {
+            free.add(c);
+        }
+    }
+
+    private abstract class Stage implements Runnable {
+
+        final StageStats stats;
+
+        Stage(String name) {
+            stats = new StageStats(name);
+        }
+
+        @Override
+        public void run() {
+            try {
+                process();
+            } catch (InterruptedException e) {
+                // woken up because some other stage failed
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        abstract void process() throws Exception;
+    }
+
+    private class ReadStage extends Stage {
+
+        private final Link out;
+
+        ReadStage(Link out) {
+            super("read");
+            this.out = out;
+        }
+
+        @Override
+        void process() throws Exception {
+            while (true) {
+                Chunk c = out.acquire(stats);
+                int read = in.read(c.data);
+                if (read < 0) {
+                    out.recycle(c);
+                    out.publish(Chunk.EOF);
+                    return;
+                }
+                c.length = read;
+                stats.add(read);
+                bytesRead.addAndGet(read);
+                out.publish(c);
+            }
+        }
+    }
+
+    private class DecryptStage extends Stage {
+
+        private final Link in;
+        private final Link out;
+
+        DecryptStage(Link in, Link out) {
+            super("decrypt");
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        void process() throws Exception {
+            for (Chunk src = in.take(stats); src != Chunk.EOF; src = in.take(stats)) {
+                Chunk dst = out.acquire(stats);
+                dst.length = cipher.update(src.data, 0, src.length, dst.data);
+                in.recycle(src);
+                emit(dst);
+            }
+            Chunk dst = out.acquire(stats);
+            dst.length = cipher.doFinal(dst.data, 0);
+            emit(dst);
+            out.publish(Chunk.EOF);
+        }
+
+        private void emit(Chunk c) {
+            if (c.length == 0) {
+                out.recycle(c);
+            } else {
+                stats.add(c.length);
+                out.publish(c);
+            }
+        }
+    }
+
+    private class InflateStage extends Stage {
+
+        private final Link in;
+        private final Link out;
+
+        InflateStage(Link in, Link out) {
+            super("inflate");
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        void process() throws Exception {
+            Inflater inf = new Inflater();
+            try {
+                inflate(inf);
+            } finally {
+                inf.end();
+            }
+        }
+
+        private void inflate(Inflater inf) throws Exception {
+            Chunk dst = out.acquire(stats);
+            while (!inf.finished()) {
+                Chunk src = in.take(stats);
+                if (src == Chunk.EOF) {
+                    // same as InflaterInputStream
+                    throw new EOFException("Unexpected end of ZLIB input stream");
+                }
+                inf.setInput(src.data, 0, src.length);
+                // the inflater keeps a reference to the input, so the chunk
+                // can only be reused once it has been fully consumed and all
+                // pending output has been drained
+                while (true) {
+                    int n = inf.inflate(dst.data, dst.length, dst.data.length - dst.length);
+                    dst.length += n;
+                    if (dst.length == dst.data.length) {
+                        stats.add(dst.length);
+                        out.publish(dst);
+                        dst = out.acquire(stats);
+                    } else if (n == 0) {
+                        if (inf.finished() || inf.needsInput()) {
+                            break;
+                        }
+                        if (inf.needsDictionary()) {
+                            throw new ZipException("Deflate stream requires a preset dictionary");
+                        }
+                    }
+                }
+                in.recycle(src);
+            }
+            if (dst.length > 0) {
+                stats.add(dst.length);
+                out.publish(dst);
+            } else {
+                out.recycle(dst);
+            }
+            out.publish(Chunk.EOF);
+
+            // Anything after the end of the deflate stream is ignored, as
+            // InflaterInputStream does, but upstream must still be drained
+            // so it can run to completion.
+            Chunk rest;
+            while ((rest = in.take(stats)) != Chunk.EOF) {
+                in.recycle(rest);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.nick.abe;
+
+// Passes progress on to a MetricsListener once per percent of total, so
+// that the read loops only compare against the next threshold. With an
+// unknown total it reports every megabyte.
+class Progress {
+
+    private static final long UNKNOWN_STEP = 1024 * 1024;
+
+    private final MetricsListener listener;
+    private final long total;
+    private final long step;
+    private long next;
+
+    Progress(MetricsListener listener, long total) {
+        this.listener = listener;
+        this.total = total > 0 ? total : -1;
+        this.step = total > 0 ? Math.max(1, total / 100) : UNKNOWN_STEP;
+    }
+
+    void update(long done) {
+        if (done >= next) {
+            listener.progress(done, total);
+            next = (done / step + 1) * step;
+        }
+    }
+
+    // the output extractAsTar() has always had: the percentage done
+    static class PercentPrinter implements MetricsListener {
+
+        private long percentDone = -1;
+
+        @Override
+        public void progress(long bytesRead, long bodyLength) {
+            if (bodyLength <= 0) {
+                return;
+            }
+            long percent = Math.round(bytesRead * 100.0 / bodyLength);
+            if (percent != percentDone) {
+                System.err.printf("%d%% ", percent);
+                percentDone = percent;
+            }
+        }
+
+        @Override
+        public void finished(ExtractMetrics metrics) {
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package org.nick.abe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+// A deflate decoder in plain Java. java.util.zip.Inflater hides where the
+// blocks of a deflate stream start, and restarting decoding in the middle of
+// a stream needs exactly that: the bit offset of a block header and the 32KB
+// of output preceding it. A BlockListener is told about every block header
+// before it is read. Slower than zlib, so only used where the block
+// boundaries are needed.
+class RawInflater extends InputStream {
+
+    interface BlockListener {
+        // called at the start of every block, before its header is read
+        void blockStart(RawInflater inflater) throws IOException;
+    }
+
+    // the bit reading side of a decoder, see readCodeLengths()
+    interface BitInput {
+        int bits(int n) throws IOException;
+
+        int decode(int[] table, int tableBits) throws IOException;
+    }
+
+    static final int WINDOW_SIZE = 32 * 1024;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int ADLER_BASE = 65521;
+    static final int MAX_MATCH = 258;
+    static final int MAX_BITS = 15;
+
+    private static final int HEADER = 0;
+    private static final int STORED = 1;
+    private static final int HUFFMAN = 2;
+    private static final int TRAILER = 3;
+    private static final int DONE = 4;
+
+    static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17,
+            19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2,
+            2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+    static final int[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65,
+            97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193,
+            12289, 16385, 24577 };
+    static final int[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5,
+            6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+    static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5,
+            11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    static final int[] FIXED_LIT = new int[1 << 9];
+    static final int[] FIXED_DIST = new int[1 << 5];
+
+    static {
+        int[] lengths = new int[288];
+        Arrays.fill(lengths, 0, 144, 8);
+        Arrays.fill(lengths, 144, 256, 9);
+        Arrays.fill(lengths, 256, 280, 7);
+        Arrays.fill(lengths, 280, 288, 8);
+        try {
+            buildTable(lengths, 288, FIXED_LIT);
+            Arrays.fill(lengths, 0, 30, 5);
+            buildTable(lengths, 30, FIXED_DIST);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private final InputStream in;
+    private final boolean zlib;
+    private final BlockListener listener;
+    private final Adler32 adler;
+    // the checksum and length of the output before a resumed stream
+    private long adlerBase = 1;
+    private long adlerBaseOffset;
+    // bits of the first byte before the block a resumed stream starts at
+    private int resumeShift = -1;
+
+    private final byte[] inBuf = new byte[64 * 1024];
+    private int inPos;
+    private int inLimit;
+    private long inBase;
+    private long bitBuf;
+    private int bitCount;
+
+    // decoded data, preceded by up to WINDOW_SIZE bytes of history
+    private final byte[] out = new byte[WINDOW_SIZE + BUFFER_SIZE];
+    private int outPos;
+    private int readPos;
+    private long outBase;
+
+    private int state = HEADER;
+    private boolean lastBlock;
+    private boolean headerRead;
+    private int storedRemaining;
+    private final BitInput bitInput = new BitInput() {
+        @Override
+        public int bits(int n) throws IOException {
+            return RawInflater.this.bits(n);
+        }
+
+        @Override
+        public int decode(int[] table, int tableBits) throws IOException {
+            return RawInflater.this.decode(table, tableBits);
+        }
+    };
+    private final int[] dynamicLit = new int[1 << MAX_BITS];
+    private final int[] dynamicDist = new int[1 << MAX_BITS];
+    private int[] litTable;
+    private int litBits;
+    private int[] distTable;
+    private int distBits;
+
+    // in is a zlib stream if zlib is set, raw deflate data otherwise
+    RawInflater(InputStream in, boolean zlib, BlockListener listener) {
+        this.in = in;
+        this.zlib = zlib;
+        this.listener = listener;
+        this.adler = zlib ? new Adler32() : null;
+    }
+
+    // Continues a zlib stream at a block a BlockListener was told about: in
+    // is the stream from byte bitOffset / 8 on, window and adler what
+    // getWindow() and getAdler() returned there. Offsets, windows and the
+    // checksum stay those of the whole stream.
+    RawInflater(InputStream in, long bitOffset, long outputOffset, byte[] window, long adler,
+            BlockListener listener) {
+        this(in, true, listener);
+        this.inBase = bitOffset >>> 3;
+        this.resumeShift = (int) (bitOffset & 7);
+        System.arraycopy(window, 0, out, 0, window.length);
+        this.outPos = window.length;
+        this.readPos = window.length;
+        this.outBase = outputOffset - window.length;
+        this.adlerBase = adler;
+        this.adlerBaseOffset = outputOffset;
+    }
+
+    // bits of input consumed so far, counted from the start of the stream
+    // (including the zlib header)
+    long getBitOffset() {
+        return (inBase + inPos) * 8 - bitCount;
+    }
+
+    // bytes decoded so far
+    long getOutputOffset() {
+        return outBase + outPos;
+    }
+
+    // the last WINDOW_SIZE bytes decoded, or all of them if there are fewer
+    byte[] getWindow() {
+        int length = (int) Math.min(WINDOW_SIZE, outBase + outPos);
+        return Arrays.copyOfRange(out, outPos - length, outPos);
+    }
+
+    // the Adler-32 of the output so far, up to date when a BlockListener is
+    // called
+    long getAdler() {
+        return combineAdler(adlerBase, adler.getValue(), getOutputOffset() - adlerBaseOffset);
+    }
+
+    // the Adler-32 of two pieces of data from theirs, as zlib's
+    // adler32_combine()
+    static long combineAdler(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = rem * sum1 % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE << 1) {
+            sum2 -= ADLER_BASE << 1;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    boolean isFinished() {
+        return state == DONE;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (readPos == outPos) {
+            if (state == DONE) {
+                return -1;
+            }
+            inflate();
+        }
+        int n = Math.min(len, outPos - readPos);
+        System.arraycopy(out, readPos, b, off, n);
+        readPos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // decodes until the buffer is full or the stream ends
+    private void inflate() throws IOException {
+        if (!headerRead) {
+            if (resumeShift >= 0) {
+                bits(resumeShift);
+            } else if (zlib) {
+                readZlibHeader();
+            }
+            headerRead = true;
+        }
+        if (outPos > WINDOW_SIZE + BUFFER_SIZE / 2) {
+            // keep the window for back references, everything else has been read
+            System.arraycopy(out, outPos - WINDOW_SIZE, out, 0, WINDOW_SIZE);
+            outBase += outPos - WINDOW_SIZE;
+            outPos = WINDOW_SIZE;
+            readPos = WINDOW_SIZE;
+        }
+        int start = outPos;
+        int limit = out.length - MAX_MATCH;
+        while (outPos < limit && state != DONE) {
+            switch (state) {
+                case HEADER:
+                    if (lastBlock) {
+                        state = zlib ? TRAILER : DONE;
+                        break;
+                    }
+                    if (listener != null) {
+                        if (adler != null) {
+                            adler.update(out, start, outPos - start);
+                            start = outPos;
+                        }
+                        listener.blockStart(this);
+                    }
+                    readBlockHeader();
+                    break;
+                case STORED:
+                    copyStored();
+                    break;
+                case HUFFMAN:
+                    decodeHuffman(limit);
+                    break;
+                case TRAILER:
+                    if (adler != null) {
+                        adler.update(out, start, outPos - start);
+                        start = outPos;
+                    }
+                    readTrailer();
+                    state = DONE;
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+        if (adler != null) {
+            adler.update(out, start, outPos - start);
+        }
+    }
+
+    private void readZlibHeader() throws IOException {
+        int cmf = bits(8);
+        int flg = bits(8);
+        if ((cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0) {
+            throw new IOException("Invalid zlib header");
+        }
+        if ((flg & 0x20) != 0) {
+            throw new IOException("Preset dictionaries are not supported");
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        bits(bitCount & 7);
+        long expected = ((long) bits(8) << 24) | (bits(8) << 16) | (bits(8) << 8) | bits(8);
+        if (expected != getAdler()) {
+            throw new IOException("Adler-32 checksum mismatch");
+        }
+    }
+
+    private void readBlockHeader() throws IOException {
+        lastBlock = bits(1) == 1;
+        int type = bits(2);
+        switch (type) {
+            case 0:
+                bits(bitCount & 7);
+                int length = bits(16);
+                int complement = bits(16);
+                if ((length ^ 0xffff) != complement) {
+                    throw new IOException("Invalid stored block length");
+                }
+                storedRemaining = length;
+                state = STORED;
+                break;
+            case 1:
+                litTable = FIXED_LIT;
+                litBits = 9;
+                distTable = FIXED_DIST;
+                distBits = 5;
+                state = HUFFMAN;
+                break;
+            case 2:
+                readDynamicTables();
+                state = HUFFMAN;
+                break;
+            default:
+                throw new IOException("Invalid deflate block type");
+        }
+    }
+
+    private void readDynamicTables() throws IOException {
+        int[][] lengths = readCodeLengths(bitInput);
+        litTable = dynamicLit;
+        litBits = buildTable(lengths[0], lengths[0].length, dynamicLit);
+        distTable = dynamicDist;
+        distBits = buildTable(lengths[1], lengths[1].length, dynamicDist);
+    }
+
+    // Reads the code lengths of a dynamic block following its 3 header
+    // bits, returns the literal/length and the distance code lengths.
+    static int[][] readCodeLengths(BitInput in) throws IOException {
+        int literals = in.bits(5) + 257;
+        int distances = in.bits(5) + 1;
+        int codeLengthCodes = in.bits(4) + 4;
+        if (literals > 286 || distances > 30) {
+            throw new IOException("Invalid deflate code counts");
+        }
+
+        int[] lengths = new int[literals + distances];
+        int[] codeLengths = new int[19];
+        for (int i = 0; i < codeLengthCodes; i++) {
+            codeLengths[CODE_LENGTH_ORDER[i]] = in.bits(3);
+        }
+        int[] codeLengthTable = new int[1 << 7];
+        int codeLengthBits = buildTable(codeLengths, 19, codeLengthTable);
+
+        int i = 0;
+        while (i < lengths.length) {
+            int symbol = in.decode(codeLengthTable, codeLengthBits);
+            if (symbol < 16) {
+                lengths[i++] = symbol;
+                continue;
+            }
+            int value = 0;
+            int repeat;
+            if (symbol == 16) {
+                if (i == 0) {
+                    throw new IOException("Invalid code length repeat");
+                }
+                value = lengths[i - 1];
+                repeat = 3 + in.bits(2);
+            } else if (symbol == 17) {
+                repeat = 3 + in.bits(3);
+            } else {
+                repeat = 11 + in.bits(7);
+            }
+            if (i + repeat > lengths.length) {
+                throw new IOException("Invalid code length repeat");
+            }
+            Arrays.fill(lengths, i, i + repeat, value);
+            i += repeat;
+        }
+        if (lengths[256] == 0) {
+            throw new IOException("Missing end-of-block code");
+        }
+        return new int[][] { Arrays.copyOf(lengths, literals),
+                Arrays.copyOfRange(lengths, literals, lengths.length) };
+    }
+
+    // whether the code lengths use up all codes, as zlib's always do except
+    // for distance codes with a single code
+    static boolean isComplete(int[] lengths) {
+        int left = 1 << MAX_BITS;
+        for (int length : lengths) {
+            if (length > 0) {
+                left -= 1 << (MAX_BITS - length);
+            }
+        }
+        return left == 0;
+    }
+
+    // Fills table, indexed by the next tableBits input bits, with
+    // (symbol << 4) | code length. Returns tableBits, the longest code
+    // length. Entries of incomplete codes stay 0 and are rejected by decode().
+    static int buildTable(int[] lengths, int symbols, int[] table)
+            throws IOException {
+        int[] count = new int[MAX_BITS + 1];
+        int maxLength = 0;
+        for (int i = 0; i < symbols; i++) {
+            count[lengths[i]]++;
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
+        count[0] = 0;
+        int tableBits = Math.max(maxLength, 1);
+        int size = 1 << tableBits;
+
+        int[] next = new int[MAX_BITS + 2];
+        int code = 0;
+        int left = 1;
+        for (int length = 1; length <= MAX_BITS; length++) {
+            left = (left << 1) - count[length];
+            if (left < 0) {
+                throw new IOException("Over-subscribed deflate code");
+            }
+            next[length] = code;
+            code = (code + count[length]) << 1;
+        }
+
+        Arrays.fill(table, 0, size, 0);
+        for (int symbol = 0; symbol < symbols; symbol++) {
+            int length = lengths[symbol];
+            if (length == 0) {
+                continue;
+            }
+            // deflate sends codes starting with their most significant bit
+            int reversed = Integer.reverse(next[length]++) >>> (32 - length);
+            int entry = (symbol << 4) | length;
+            for (int j = reversed; j < size; j += 1 << length) {
+                table[j] = entry;
+            }
+        }
+        return tableBits;
+    }
+
+    private void decodeHuffman(int limit) throws IOException {
+        byte[] out = this.out;
+        int outPos = this.outPos;
+        try {
+            while (outPos < limit) {
+                int symbol = decode(litTable, litBits);
+                if (symbol < 256) {
+                    out[outPos++] = (byte) symbol;
+                } else if (symbol == 256) {
+                    state = HEADER;
+                    return;
+                } else {
+                    symbol -= 257;
+                    if (symbol >= 29) {
+                        throw new IOException("Invalid deflate length code");
+                    }
+                    int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+                    int distanceCode = decode(distTable, distBits);
+                    if (distanceCode >= 30) {
+                        throw new IOException("Invalid deflate distance code");
+                    }
+                    int distance = DIST_BASE[distanceCode] + bits(DIST_EXTRA[distanceCode]);
+                    if (distance > outPos) {
+                        throw new IOException("Invalid deflate distance too far back");
+                    }
+                    int from = outPos - distance;
+                    if (distance >= length) {
+                        System.arraycopy(out, from, out, outPos, length);
+                        outPos += length;
+                    } else {
+                        for (int end = outPos + length; outPos < end;) {
+                            out[outPos++] = out[from++];
+                        }
+                    }
+                }
+            }
+        } finally {
+            this.outPos = outPos;
+        }
+    }
+
+    private void copyStored() throws IOException {
+        int n = Math.min(storedRemaining, out.length - outPos);
+        // whatever is left in the bit buffer is byte aligned here
+        while (n > 0 && bitCount >= 8) {
+            out[outPos++] = (byte) bits(8);
+            storedRemaining--;
+            n--;
+        }
+        while (n > 0) {
+            if (inPos == inLimit && !refill()) {
+                throw new EOFException("Unexpected end of deflate stream");
+            }
+            int chunk = Math.min(n, inLimit - inPos);
+            System.arraycopy(inBuf, inPos, out, outPos, chunk);
+            inPos += chunk;
+            outPos += chunk;
+            storedRemaining -= chunk;
+            n -= chunk;
+        }
+        if (storedRemaining == 0) {
+            state = HEADER;
+        }
+    }
+
+    private int decode(int[] table, int tableBits) throws IOException {
+        if (bitCount < tableBits) {
+            fillBits();
+        }
+        int entry = table[(int) bitBuf & ((1 << tableBits) - 1)];
+        int length = entry & 0x0f;
+        if (length == 0 || length > bitCount) {
+            if (length > bitCount) {
+                throw new EOFException("Unexpected end of deflate stream");
+            }
+            throw new IOException("Invalid deflate code");
+        }
+        bitBuf >>>= length;
+        bitCount -= length;
+        return entry >>> 4;
+    }
+
+    private int bits(int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        if (bitCount < n) {
+            fillBits();
+            if (bitCount < n) {
+                throw new EOFException("Unexpected end of deflate stream");
+            }
+        }
+        int value = (int) (bitBuf & ((1L << n) - 1));
+        bitBuf >>>= n;
+        bitCount -= n;
+        return value;
+    }
+
+    private void fillBits() throws IOException {
+        while (bitCount <= 56) {
+            if (inPos == inLimit && !refill()) {
+                return;
+            }
+            bitBuf |= (long) (inBuf[inPos++] & 0xff) << bitCount;
+            bitCount += 8;
+        }
+    }
+
+    private boolean refill() throws IOException {
+        inBase += inLimit;
+        inPos = 0;
+        inLimit = 0;
+        int n = in.read(inBuf, 0, inBuf.length);
+        if (n <= 0) {
+            return false;
+        }
+        inLimit = n;
+        return true;
+    }
+}
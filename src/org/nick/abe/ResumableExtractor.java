@@ -0,0 +1,174 @@
+package org.nick.abe;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import javax.crypto.Cipher;
+
+// Extracts the tar of a backup into a file like extractAsTar(), keeping an
+// ExtractJournal next to it, and picks up where an interrupted run stopped:
+// the output is cut back to the last checkpoint of its journal and decoding
+// starts there. Compressed bodies are inflated by RawInflater, which tells
+// where its blocks start; a checkpoint is taken at the first block start
+// every spacing bytes, and journaled once the output reaches it.
+class ResumableExtractor {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final Path backup;
+    private final BackupHeader header;
+    private final MasterKey masterKey;
+    private final long spacing;
+
+    private FileChannel in;
+    private MeteredInputStream raw;
+    // file offset of the first byte raw reads
+    private long rawStart;
+    private long resumedAt;
+
+    // masterKey is null for unencrypted backups
+    ResumableExtractor(Path backup, BackupHeader header, MasterKey masterKey, long spacing) {
+        this.backup = backup;
+        this.header = header;
+        this.masterKey = masterKey;
+        this.spacing = spacing;
+    }
+
+    // the backup offset up to which the body has been read
+    long getBackupOffset() {
+        return raw == null ? 0 : rawStart + raw.getBytes();
+    }
+
+    // the output offset this run started at, 0 unless resumed
+    long getResumedAt() {
+        return resumedAt;
+    }
+
+    // Writes the tar to output, resuming from its journal if resume is set
+    // and there is one. Returns the length of the tar.
+    long run(Path output, boolean resume, Progress progress)
+            throws IOException, GeneralSecurityException {
+        long backupLength = Files.size(backup);
+        Path journalPath = ExtractJournal.journalPath(output);
+        ExtractJournal journal = resume && Files.exists(journalPath) && Files.exists(output)
+                ? ExtractJournal.resume(journalPath, header, backupLength, Files.size(output))
+                : ExtractJournal.create(journalPath, header, backupLength);
+        boolean done = false;
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            in = FileChannel.open(backup, StandardOpenOption.READ);
+            ExtractJournal.Checkpoint cp = journal.getLast();
+            resumedAt = cp == null ? 0 : cp.getOutputOffset();
+            out.truncate(resumedAt);
+            out.position(resumedAt);
+
+            final Queue<ExtractJournal.Checkpoint> pending = new ArrayDeque<>();
+            InputStream tar;
+            if (header.isCompressed()) {
+                RawInflater.BlockListener listener = new RawInflater.BlockListener() {
+                    private long next = resumedAt + spacing;
+
+                    @Override
+                    public void blockStart(RawInflater inflater) throws IOException {
+                        long outputOffset = inflater.getOutputOffset();
+                        if (outputOffset < next) {
+                            return;
+                        }
+                        pending.add(checkpoint(outputOffset, inflater.getBitOffset(),
+                                inflater.getWindow(), inflater.getAdler()));
+                        next = outputOffset + spacing;
+                    }
+                };
+                InputStream body = openBody(cp == null ? 0 : cp.getBitOffset() >>> 3, cp);
+                tar = cp == null ? new RawInflater(body, true, listener)
+                        : new RawInflater(body, cp.getBitOffset(), cp.getOutputOffset(),
+                                cp.getWindow(), cp.getAdler(), listener);
+            } else {
+                tar = openBody(resumedAt, cp);
+            }
+
+            long written = resumedAt;
+            long next = resumedAt + spacing;
+            try {
+                byte[] buf = new byte[BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(buf);
+                int n;
+                while ((n = tar.read(buf)) >= 0) {
+                    buffer.clear().limit(n);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    written += n;
+                    if (!header.isCompressed() && written >= next) {
+                        // any offset will do
+                        pending.add(checkpoint(written, written * 8, new byte[0], 0));
+                        next = written + spacing;
+                    }
+                    if (!pending.isEmpty() && pending.peek().getOutputOffset() <= written) {
+                        out.force(false);
+                        while (!pending.isEmpty()
+                                && pending.peek().getOutputOffset() <= written) {
+                            journal.append(pending.remove());
+                        }
+                    }
+                    progress.update(getBackupOffset());
+                }
+            } finally {
+                tar.close();
+            }
+            out.force(false);
+            done = true;
+            return written;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            if (done) {
+                journal.delete();
+            } else {
+                journal.close();
+            }
+        }
+    }
+
+    // a checkpoint at outputOffset, the IV read back from the backup
+    private ExtractJournal.Checkpoint checkpoint(long outputOffset, long bitOffset,
+            byte[] window, long adler) throws IOException {
+        long cipherOffset = header.getBodyOffset()
+                + BackupIndex.alignedBodyOffset(header, bitOffset >>> 3);
+        byte[] iv = null;
+        if (masterKey != null && cipherOffset > header.getBodyOffset()) {
+            iv = BackupIndex.readBlock(in, cipherOffset - 16);
+        }
+        return new ExtractJournal.Checkpoint(outputOffset, bitOffset, cipherOffset, iv,
+                window, adler);
+    }
+
+    // the decrypted body from offset on, decrypting from the checkpoint's IV
+    private InputStream openBody(long offset, ExtractJournal.Checkpoint cp)
+            throws IOException, GeneralSecurityException {
+        long aligned = BackupIndex.alignedBodyOffset(header, offset);
+        rawStart = header.getBodyOffset() + aligned;
+        in.position(rawStart);
+        raw = new MeteredInputStream(new BufferedInputStream(Channels.newInputStream(in),
+                BUFFER_SIZE));
+        InputStream body = raw;
+        if (masterKey != null) {
+            byte[] iv = cp == null ? null : cp.getIv();
+            Cipher c = iv == null ? masterKey.newDecryptCipher() : masterKey.newDecryptCipher(iv);
+            body = new BulkCipherInputStream(body, c);
+        }
+        IndexedReader.skipFully(body, offset - aligned);
+        return body;
+    }
+}
@@ -0,0 +1,613 @@
+package org.nick.abe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+// Decodes a part of a deflate stream held in memory, from a block boundary
+// up to the first block boundary at or after a given bit offset. Used by
+// ParallelInflater to decode parts of a stream at the same time.
+//
+// A part is decoded before the data preceding it, so the 32KB window that
+// back references reach into is not known yet. Bytes copied from it are
+// recorded as markers (256 + position in the window) and replaced once the
+// window is known. As soon as the last 32KB of output hold no markers, no
+// later output can contain any and decoding continues into plain bytes.
+//
+// Starting in the middle of a stream also means finding a block boundary
+// without having decoded up to it. findStart() looks for the header of a
+// dynamic Huffman block with valid, complete code tables. That can still be
+// a false positive, which the caller detects when the decoder of the
+// preceding part ends somewhere else.
+//
+// The output of a part is held in memory, so it is limited to MAX_OUTPUT
+// bytes: highly compressible data inflates to far more than the input. The
+// parts decoded at the same time also share a budget of output bytes, which
+// every output array is taken from and given back to once the part has been
+// written. inflate() gives up when either is used up.
+class SegmentInflater {
+
+    // output of a part, beyond which inflate() gives up
+    static final int MAX_OUTPUT = 32 * 1024 * 1024;
+
+    private static final int WINDOW_SIZE = RawInflater.WINDOW_SIZE;
+    private static final int MARKER = 256;
+    private static final int MAX_MATCH = RawInflater.MAX_MATCH;
+    // the output arrays, which start with up to 32KB of history
+    private static final int MAX_LENGTH = WINDOW_SIZE + MAX_OUTPUT;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] in;
+    private final int inLength;
+    private final long baseBit;
+    // output bytes left to all parts, taken by the arrays of this one
+    private final Semaphore budget;
+    private int reserved;
+
+    private int inPos;
+    private long bitBuf;
+    private int bitCount;
+
+    private final int[] dynamicLit = new int[1 << RawInflater.MAX_BITS];
+    private final int[] dynamicDist = new int[1 << RawInflater.MAX_BITS];
+    private int[] litTable;
+    private int litBits;
+    private int[] distTable;
+    private int distBits;
+
+    // results of the decode methods besides the output array
+    private int outLength;
+    private int clean;
+
+    private final RawInflater.BitInput bitInput = new RawInflater.BitInput() {
+        @Override
+        public int bits(int n) throws IOException {
+            return SegmentInflater.this.bits(n);
+        }
+
+        @Override
+        public int decode(int[] table, int tableBits) throws IOException {
+            return SegmentInflater.this.decode(table, tableBits);
+        }
+    };
+
+    // thrown by inflate() when a part inflates to more than MAX_OUTPUT bytes
+    // or to more than is left of the budget
+    static class TooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    // The decoded part: output that may contain markers followed by plain
+    // output. plain starts with up to 32KB of history that is not part of
+    // the output itself.
+    static class Segment {
+
+        private final long startBit;
+        private final long endBit;
+        private final boolean last;
+        private final long trailer;
+        private final char[] marked;
+        private final int markedLength;
+        private final byte[] plain;
+        private final int plainStart;
+        private final int plainLength;
+        private final Semaphore budget;
+        private int reserved;
+
+        Segment(long startBit, long endBit, boolean last, long trailer, char[] marked,
+                int markedLength, byte[] plain, int plainStart, int plainLength,
+                Semaphore budget, int reserved) {
+            this.startBit = startBit;
+            this.endBit = endBit;
+            this.last = last;
+            this.trailer = trailer;
+            this.marked = marked;
+            this.markedLength = markedLength;
+            this.plain = plain;
+            this.plainStart = plainStart;
+            this.plainLength = plainLength;
+            this.budget = budget;
+            this.reserved = reserved;
+        }
+
+        long getStartBit() {
+            return startBit;
+        }
+
+        // offset of the block following the part, or of the end of the
+        // final block
+        long getEndBit() {
+            return endBit;
+        }
+
+        // whether the part ends with the final block
+        boolean isLast() {
+            return last;
+        }
+
+        // the Adler-32 of the zlib trailer after the final block
+        long getTrailer() {
+            return trailer;
+        }
+
+        long getLength() {
+            return markedLength + (plainLength - plainStart);
+        }
+
+        // gives the output arrays back to the budget once the segment has
+        // been written or is not needed
+        void release() {
+            budget.release(reserved);
+            reserved = 0;
+        }
+
+        // Writes the output, replacing markers with bytes from window (the
+        // 32KB of output preceding the part), and returns the last 32KB of
+        // output including window.
+        byte[] write(byte[] window, OutputStream out) throws IOException {
+            byte[] buf = new byte[Math.min(markedLength, WRITE_BUFFER_SIZE)];
+            for (int i = 0; i < markedLength; i += buf.length) {
+                int n = Math.min(buf.length, markedLength - i);
+                resolve(window, i, buf, 0, n);
+                out.write(buf, 0, n);
+            }
+            out.write(plain, plainStart, plainLength - plainStart);
+
+            byte[] result = new byte[(int) Math.min(WINDOW_SIZE, window.length + getLength())];
+            int pos = result.length;
+            int n = Math.min(pos, plainLength - plainStart);
+            System.arraycopy(plain, plainLength - n, result, pos - n, n);
+            pos -= n;
+            n = Math.min(pos, markedLength);
+            resolve(window, markedLength - n, result, pos - n, n);
+            pos -= n;
+            System.arraycopy(window, window.length - pos, result, 0, pos);
+            return result;
+        }
+
+        private void resolve(byte[] window, int from, byte[] to, int offset, int length)
+                throws IOException {
+            for (int i = 0; i < length; i++) {
+                int c = marked[from + i];
+                if (c >= MARKER) {
+                    int index = c - MARKER - (WINDOW_SIZE - window.length);
+                    if (index < 0) {
+                        throw new IOException("Invalid deflate distance too far back");
+                    }
+                    to[offset + i] = window[index];
+                } else {
+                    to[offset + i] = (byte) c;
+                }
+            }
+        }
+    }
+
+    // in holds the stream from bit baseBit on
+    SegmentInflater(byte[] in, int inLength, long baseBit, Semaphore budget) {
+        this.in = in;
+        this.inLength = inLength;
+        this.baseBit = baseBit;
+        this.budget = budget;
+    }
+
+    // The first position in [fromBit, toBit) that looks like the header of
+    // a non-final stored or dynamic block, -1 if there is none.
+    long findStart(long fromBit, long toBit) {
+        long limit = Math.min(toBit, baseBit + (long) inLength * 8);
+        for (long bit = fromBit; bit < limit; bit++) {
+            int index = (int) ((bit - baseBit) >>> 3);
+            int shift = (int) ((bit - baseBit) & 7);
+            // the first 17 bits of a block header fit in the next 3 bytes
+            int b = (in[index] & 0xff) >>> shift;
+            if (index + 1 < inLength) {
+                b |= (in[index + 1] & 0xff) << (8 - shift);
+            }
+            if (index + 2 < inLength) {
+                b |= (in[index + 2] & 0xff) << (16 - shift);
+            }
+            if ((b & 7) == 0) {
+                if (isStoredBlock(bit, b)) {
+                    return bit;
+                }
+            } else if ((b & 7) == 4 && ((b >>> 3) & 31) <= 29 && ((b >>> 8) & 31) <= 29
+                    && isDynamicBlock(bit, ((b >>> 13) & 15) + 4)) {
+                return bit;
+            }
+        }
+        return -1;
+    }
+
+    // b holds the bits from bit on
+    private boolean isStoredBlock(long bit, int b) {
+        // zero padding up to the byte boundary, then LEN and its complement
+        long aligned = alignedAfterHeader(bit);
+        int padding = (int) (aligned - bit - 3);
+        if (((b >>> 3) & ((1 << padding) - 1)) != 0) {
+            return false;
+        }
+        int index = (int) ((aligned - baseBit) >>> 3);
+        if (index + 4 > inLength) {
+            return false;
+        }
+        int length = (in[index] & 0xff) | ((in[index + 1] & 0xff) << 8);
+        int complement = (in[index + 2] & 0xff) | ((in[index + 3] & 0xff) << 8);
+        return (length ^ 0xffff) == complement;
+    }
+
+    private boolean isDynamicBlock(long bit, int codeLengthCodes) {
+        try {
+            // zlib's code length codes are complete, which rules out most
+            // positions before the expensive part
+            seek(bit + 17);
+            int left = 1 << 7;
+            for (int i = 0; i < codeLengthCodes; i++) {
+                int length = bits(3);
+                if (length > 0) {
+                    left -= 1 << (7 - length);
+                }
+            }
+            if (left != 0) {
+                return false;
+            }
+            seek(bit + 3);
+            int[][] lengths = RawInflater.readCodeLengths(bitInput);
+            return RawInflater.isComplete(lengths[0])
+                    && (RawInflater.isComplete(lengths[1]) || usedCodes(lengths[1]) <= 1);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // The padding after the header of a stored block is skipped, so a
+    // stored block found by findStart() at a may really start at b, later
+    // in the padding. Decoding from either is the same.
+    static boolean isSameStart(byte[] in, int inLength, long baseBit, long a, long b) {
+        if (a == b) {
+            return true;
+        }
+        return alignedAfterHeader(a) == alignedAfterHeader(b)
+                && isStoredHeader(in, inLength, baseBit, a)
+                && isStoredHeader(in, inLength, baseBit, b);
+    }
+
+    private static long alignedAfterHeader(long bit) {
+        return (bit + 3 + 7) & ~7L;
+    }
+
+    private static boolean isStoredHeader(byte[] in, int inLength, long baseBit, long bit) {
+        for (long i = bit; i < bit + 3; i++) {
+            int index = (int) ((i - baseBit) >>> 3);
+            if (i < baseBit || index >= inLength
+                    || ((in[index] >>> ((i - baseBit) & 7)) & 1) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Decodes from the block at startBit up to the first block boundary at
+    // or after stopBit. window is the output preceding startBit, or null if
+    // unknown. Throws TooLargeException if that is more than MAX_OUTPUT
+    // bytes or more than the budget has left.
+    Segment inflate(long startBit, long stopBit, byte[] window) throws IOException {
+        boolean done = false;
+        try {
+            Segment segment = decodeSegment(startBit, stopBit, window);
+            done = true;
+            return segment;
+        } finally {
+            if (!done) {
+                budget.release(reserved);
+            }
+            reserved = 0;
+        }
+    }
+
+    private Segment decodeSegment(long startBit, long stopBit, byte[] window)
+            throws IOException {
+        seek(startBit);
+
+        char[] marked = null;
+        int markedLength = 0;
+        int clean = 0;
+        byte[] plain = null;
+        int plainStart = 0;
+        int plainLength = 0;
+        if (window == null) {
+            reserve(2 * 1024 * 1024);
+            marked = new char[1024 * 1024];
+        } else {
+            int length = Math.max(window.length * 2, 1024 * 1024);
+            reserve(length);
+            plain = new byte[length];
+            System.arraycopy(window, 0, plain, 0, window.length);
+            plainStart = window.length;
+            plainLength = window.length;
+        }
+
+        boolean last = false;
+        while (!last) {
+            long bit = position();
+            if (bit >= stopBit) {
+                break;
+            }
+            if (plain == null && markedLength - clean >= WINDOW_SIZE) {
+                // no markers left within reach, go on with plain bytes
+                int length = Math.max(marked.length, WINDOW_SIZE * 2);
+                reserve(length);
+                plain = new byte[length];
+                for (int i = 0; i < WINDOW_SIZE; i++) {
+                    plain[i] = (byte) marked[markedLength - WINDOW_SIZE + i];
+                }
+                plainStart = WINDOW_SIZE;
+                plainLength = WINDOW_SIZE;
+            }
+
+            last = bits(1) == 1;
+            int type = bits(2);
+            if (type == 0) {
+                bits(bitCount & 7);
+                int length = bits(16);
+                if ((length ^ 0xffff) != bits(16)) {
+                    throw new IOException("Invalid stored block length");
+                }
+                // the rest of the bit buffer is whole bytes now
+                int buffered = Math.min(length, bitCount >>> 3);
+                if (inPos + (length - buffered) > inLength) {
+                    throw new EOFException("Unexpected end of deflate data");
+                }
+                if (plain != null) {
+                    plain = ensure(plain, plainLength, length);
+                    for (int i = 0; i < buffered; i++) {
+                        plain[plainLength++] = (byte) bits(8);
+                    }
+                    System.arraycopy(in, inPos, plain, plainLength, length - buffered);
+                    plainLength += length - buffered;
+                } else {
+                    marked = ensure(marked, markedLength, length);
+                    for (int i = 0; i < buffered; i++) {
+                        marked[markedLength++] = (char) bits(8);
+                    }
+                    for (int i = 0; i < length - buffered; i++) {
+                        marked[markedLength++] = (char) (in[inPos + i] & 0xff);
+                    }
+                }
+                inPos += length - buffered;
+                continue;
+            }
+            if (type == 1) {
+                litTable = RawInflater.FIXED_LIT;
+                litBits = 9;
+                distTable = RawInflater.FIXED_DIST;
+                distBits = 5;
+            } else if (type == 2) {
+                int[][] lengths = RawInflater.readCodeLengths(bitInput);
+                litTable = dynamicLit;
+                litBits = RawInflater.buildTable(lengths[0], lengths[0].length, dynamicLit);
+                distTable = dynamicDist;
+                distBits = RawInflater.buildTable(lengths[1], lengths[1].length, dynamicDist);
+            } else {
+                throw new IOException("Invalid deflate block type");
+            }
+
+            if (plain != null) {
+                plain = decodePlain(plain, plainLength);
+                plainLength = this.outLength;
+            } else {
+                marked = decodeMarked(marked, markedLength, clean);
+                markedLength = this.outLength;
+                clean = this.clean;
+            }
+        }
+
+        long endBit = position();
+        long trailer = -1;
+        if (last) {
+            bits(bitCount & 7);
+            trailer = ((long) bits(8) << 24) | (bits(8) << 16) | (bits(8) << 8) | bits(8);
+        }
+        if (plain == null) {
+            plain = new byte[0];
+        }
+        return new Segment(startBit, endBit, last, trailer, marked, markedLength, plain,
+                plainStart, plainLength, budget, reserved);
+    }
+
+    private byte[] decodePlain(byte[] out, int outPos) throws IOException {
+        while (true) {
+            if (outPos + MAX_MATCH > out.length) {
+                out = grow(out, outPos + MAX_MATCH);
+            }
+            int symbol = decode(litTable, litBits);
+            if (symbol < 256) {
+                out[outPos++] = (byte) symbol;
+            } else if (symbol == 256) {
+                outLength = outPos;
+                return out;
+            } else {
+                int length = length(symbol);
+                int distance = distance();
+                if (distance > outPos) {
+                    throw new IOException("Invalid deflate distance too far back");
+                }
+                int from = outPos - distance;
+                if (distance >= length) {
+                    System.arraycopy(out, from, out, outPos, length);
+                    outPos += length;
+                } else {
+                    for (int end = outPos + length; outPos < end;) {
+                        out[outPos++] = out[from++];
+                    }
+                }
+            }
+        }
+    }
+
+    // clean is where the output without markers starts
+    private char[] decodeMarked(char[] out, int outPos, int clean) throws IOException {
+        while (true) {
+            if (outPos + MAX_MATCH > out.length) {
+                out = grow(out, outPos + MAX_MATCH);
+            }
+            int symbol = decode(litTable, litBits);
+            if (symbol < 256) {
+                out[outPos++] = (char) symbol;
+            } else if (symbol == 256) {
+                outLength = outPos;
+                this.clean = clean;
+                return out;
+            } else {
+                int length = length(symbol);
+                int distance = distance();
+                int from = outPos - distance;
+                for (int end = outPos + length; outPos < end; from++) {
+                    char c;
+                    if (from >= 0) {
+                        c = out[from];
+                    } else if (from >= -WINDOW_SIZE) {
+                        c = (char) (MARKER + WINDOW_SIZE + from);
+                    } else {
+                        throw new IOException("Invalid deflate distance too far back");
+                    }
+                    if (c >= MARKER) {
+                        clean = outPos + 1;
+                    }
+                    out[outPos++] = c;
+                }
+            }
+        }
+    }
+
+    private int length(int symbol) throws IOException {
+        symbol -= 257;
+        if (symbol >= 29) {
+            throw new IOException("Invalid deflate length code");
+        }
+        return RawInflater.LENGTH_BASE[symbol] + bits(RawInflater.LENGTH_EXTRA[symbol]);
+    }
+
+    private int distance() throws IOException {
+        int code = decode(distTable, distBits);
+        if (code >= 30) {
+            throw new IOException("Invalid deflate distance code");
+        }
+        return RawInflater.DIST_BASE[code] + bits(RawInflater.DIST_EXTRA[code]);
+    }
+
+    private byte[] ensure(byte[] out, int length, int more) throws TooLargeException {
+        return length + more > out.length ? grow(out, length + more) : out;
+    }
+
+    private char[] ensure(char[] out, int length, int more) throws TooLargeException {
+        return length + more > out.length ? grow(out, length + more) : out;
+    }
+
+    // the old array is given back once the new one holds its contents
+    private byte[] grow(byte[] out, int needed) throws TooLargeException {
+        int length = grownLength(out.length, needed);
+        reserve(length);
+        byte[] grown = Arrays.copyOf(out, length);
+        unreserve(out.length);
+        return grown;
+    }
+
+    private char[] grow(char[] out, int needed) throws TooLargeException {
+        int length = grownLength(out.length, needed);
+        reserve(2 * length);
+        char[] grown = Arrays.copyOf(out, length);
+        unreserve(2 * out.length);
+        return grown;
+    }
+
+    // doubles the length of an output array, up to MAX_LENGTH
+    private static int grownLength(int length, int needed) throws TooLargeException {
+        if (needed > MAX_LENGTH) {
+            throw new TooLargeException(
+                    "Deflate segment inflates to more than " + MAX_OUTPUT + " bytes");
+        }
+        return (int) Math.min(Math.max(2L * length, needed), MAX_LENGTH);
+    }
+
+    // bytes is at most 2 * MAX_LENGTH, which fits an int
+    private void reserve(int bytes) throws TooLargeException {
+        if (!budget.tryAcquire(bytes)) {
+            throw new TooLargeException("Deflate segment inflates to more than the "
+                    + budget.availablePermits() + " bytes left of the output budget");
+        }
+        reserved += bytes;
+    }
+
+    private void unreserve(int bytes) {
+        budget.release(bytes);
+        reserved -= bytes;
+    }
+
+    private static int usedCodes(int[] lengths) {
+        int used = 0;
+        for (int length : lengths) {
+            if (length > 0) {
+                used++;
+            }
+        }
+        return used;
+    }
+
+    private long position() {
+        return baseBit + (long) inPos * 8 - bitCount;
+    }
+
+    private void seek(long bit) throws IOException {
+        long relative = bit - baseBit;
+        inPos = (int) (relative >>> 3);
+        bitBuf = 0;
+        bitCount = 0;
+        bits((int) (relative & 7));
+    }
+
+    private int decode(int[] table, int tableBits) throws IOException {
+        if (bitCount < tableBits) {
+            fillBits();
+        }
+        int entry = table[(int) bitBuf & ((1 << tableBits) - 1)];
+        int length = entry & 0x0f;
+        if (length == 0 || length > bitCount) {
+            if (length > bitCount) {
+                throw new EOFException("Unexpected end of deflate data");
+            }
+            throw new IOException("Invalid deflate code");
+        }
+        bitBuf >>>= length;
+        bitCount -= length;
+        return entry >>> 4;
+    }
+
+    private int bits(int n) throws IOException {
+        if (n == 0) {
+            return 0;
+        }
+        if (bitCount < n) {
+            fillBits();
+            if (bitCount < n) {
+                throw new EOFException("Unexpected end of deflate data");
+            }
+        }
+        int value = (int) (bitBuf & ((1L << n) - 1));
+        bitBuf >>>= n;
+        bitCount -= n;
+        return value;
+    }
+
+    private void fillBits() {
+        while (bitCount <= 56 && inPos < inLength) {
+            bitBuf |= (long) (in[inPos++] & 0xff) << bitCount;
+            bitCount += 8;
+        }
+    }
+}
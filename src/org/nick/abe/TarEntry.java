@@ -0,0 +1,93 @@
+package org.nick.abe;
+
+// One entry of the tar stream inside a backup, as read by TarReader.
+class TarEntry {
+
+    static final char TYPE_FILE = '0';
+    static final char TYPE_OLD_FILE = '\0';
+    static final char TYPE_SYMLINK = '2';
+    static final char TYPE_DIRECTORY = '5';
+
+    private final String name;
+    private final char type;
+    private final long size;
+    private final int mode;
+    private final long modTime;
+    private final String linkName;
+    private final long headerOffset;
+    private final long dataOffset;
+
+    TarEntry(String name, char type, long size, int mode, long modTime, String linkName,
+            long headerOffset, long dataOffset) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+        this.mode = mode;
+        this.modTime = modTime;
+        this.linkName = linkName;
+        this.headerOffset = headerOffset;
+        this.dataOffset = dataOffset;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    char getType() {
+        return type;
+    }
+
+    boolean isFile() {
+        return type == TYPE_FILE || type == TYPE_OLD_FILE;
+    }
+
+    boolean isDirectory() {
+        return type == TYPE_DIRECTORY;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getMode() {
+        return mode;
+    }
+
+    // seconds since the epoch
+    long getModTime() {
+        return modTime;
+    }
+
+    String getLinkName() {
+        return linkName;
+    }
+
+    // offset in the tar stream of the first header block of this entry,
+    // including any extended headers in front of it
+    long getHeaderOffset() {
+        return headerOffset;
+    }
+
+    long getDataOffset() {
+        return dataOffset;
+    }
+
+    // offset of whatever follows the data and its padding
+    long getEndOffset() {
+        return dataOffset + TarReader.padded(size);
+    }
+
+    // the package of apps/<pkg>/... entries, null for anything else
+    String getPackageName() {
+        if (!name.startsWith("apps/")) {
+            return null;
+        }
+        int end = name.indexOf('/', 5);
+        return end < 0 ? name.substring(5) : name.substring(5, end);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,318 @@
+package org.nick.abe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads the tar stream of a backup entry by entry as it is being decoded.
+// Understands ustar headers as written by BackupManagerService, pax extended
+// headers (used by Android for long paths and large files) and GNU long
+// names. Header checksums are verified.
+class TarReader {
+
+    static final int BLOCK_SIZE = 512;
+
+    private final InputStream in;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private final byte[] skipBuffer = new byte[8 * 1024];
+
+    private long offset;
+    private long remaining;
+    private long padding;
+    private boolean endOfArchive;
+
+    TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    static long padded(long size) {
+        return (size + BLOCK_SIZE - 1) & ~(long) (BLOCK_SIZE - 1);
+    }
+
+    // the next entry, or null at the end of the archive. Skips whatever is
+    // left of the data of the current entry.
+    TarEntry next() throws IOException {
+        skipFully(remaining + padding);
+        remaining = 0;
+        padding = 0;
+
+        long headerOffset = offset;
+        String longName = null;
+        String longLink = null;
+        String paxPath = null;
+        String paxLink = null;
+        long paxSize = -1;
+        long paxTime = -1;
+        while (true) {
+            if (!readBlock(header)) {
+                // no end-of-archive marker, but nothing is missing either
+                return null;
+            }
+            if (isZeroBlock(header)) {
+                if (!readBlock(header)) {
+                    return null;
+                }
+                if (!isZeroBlock(header)) {
+                    throw new IOException("Unexpected empty tar block at offset "
+                            + (offset - 2 * BLOCK_SIZE));
+                }
+                endOfArchive = true;
+                return null;
+            }
+            verifyChecksum();
+
+            char type = (char) header[156];
+            long size = parseNumber(124, 12);
+            switch (type) {
+                case 'x': {
+                    // pax extended header for the next entry
+                    for (String[] record : parsePax(readData(size))) {
+                        if ("path".equals(record[0])) {
+                            paxPath = record[1];
+                        } else if ("linkpath".equals(record[0])) {
+                            paxLink = record[1];
+                        } else if ("size".equals(record[0])) {
+                            paxSize = Long.parseLong(record[1]);
+                        } else if ("mtime".equals(record[0])) {
+                            int dot = record[1].indexOf('.');
+                            paxTime = Long.parseLong(dot < 0 ? record[1]
+                                    : record[1].substring(0, dot));
+                        }
+                    }
+                    continue;
+                }
+                case 'g':
+                    // pax global header, nothing in it matters here
+                    skipFully(padded(size));
+                    continue;
+                case 'L':
+                    longName = trimNul(new String(readData(size), StandardCharsets.UTF_8));
+                    continue;
+                case 'K':
+                    longLink = trimNul(new String(readData(size), StandardCharsets.UTF_8));
+                    continue;
+                default:
+                    break;
+            }
+
+            String name = paxPath != null ? paxPath
+                    : longName != null ? longName : headerName();
+            String linkName = paxLink != null ? paxLink
+                    : longLink != null ? longLink : parseString(157, 100);
+            if (paxSize >= 0) {
+                size = paxSize;
+            }
+            long modTime = paxTime >= 0 ? paxTime : parseNumber(136, 12);
+            int mode = (int) parseNumber(100, 8);
+
+            // links, devices, directories and fifos never carry data
+            if (type >= '1' && type <= '6') {
+                size = 0;
+            }
+            remaining = size;
+            padding = padded(size) - size;
+            return new TarEntry(name, type, size, mode, modTime, linkName, headerOffset,
+                    offset);
+        }
+    }
+
+    // reads data of the current entry, -1 at its end
+    int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0) {
+            throw new EOFException("Unexpected end of tar stream in entry data");
+        }
+        remaining -= n;
+        offset += n;
+        return n;
+    }
+
+    // offset in the tar stream of the next byte to be read
+    long getOffset() {
+        return offset;
+    }
+
+    // whether the archive ended with the two empty blocks it should end with
+    boolean isEndOfArchive() {
+        return endOfArchive;
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int read = 0;
+        while (read < BLOCK_SIZE) {
+            int n = in.read(block, read, BLOCK_SIZE - read);
+            if (n < 0) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new EOFException("Unexpected end of tar stream in header at offset "
+                        + offset);
+            }
+            read += n;
+            offset += n;
+        }
+        return true;
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            int read = in.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of tar stream");
+            }
+            n -= read;
+            offset += read;
+        }
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > 1024 * 1024) {
+            throw new IOException("Extended tar header too large: " + size);
+        }
+        byte[] data = new byte[(int) size];
+        int read = 0;
+        while (read < data.length) {
+            int n = in.read(data, read, data.length - read);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of tar stream in extended header");
+            }
+            read += n;
+        }
+        offset += read;
+        skipFully(padded(size) - size);
+        return data;
+    }
+
+    private void verifyChecksum() throws IOException {
+        if (!isChecksumValid(header, offset - BLOCK_SIZE)) {
+            throw new IOException("Invalid tar header checksum at offset "
+                    + (offset - BLOCK_SIZE));
+        }
+    }
+
+    private String headerName() {
+        return headerName(header);
+    }
+
+    private String parseString(int start, int length) {
+        return parseString(header, start, length);
+    }
+
+    private long parseNumber(int start, int length) throws IOException {
+        return parseNumber(header, start, length, offset - BLOCK_SIZE);
+    }
+
+    // The helpers below also serve AdaptiveDeflaterOutputStream, which
+    // follows the entries of a tar being written.
+
+    static boolean isChecksumValid(byte[] block, long blockOffset) throws IOException {
+        long expected = parseNumber(block, 148, 8, blockOffset);
+        long unsigned = 0;
+        long signed = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            byte b = i >= 148 && i < 156 ? (byte) ' ' : block[i];
+            unsigned += b & 0xff;
+            signed += b;
+        }
+        // some old tars used signed bytes
+        return expected == unsigned || expected == signed;
+    }
+
+    static String headerName(byte[] block) {
+        String name = parseString(block, 0, 100);
+        // ustar splits long names into prefix and name
+        if (block[257] == 'u' && block[258] == 's' && block[259] == 't'
+                && block[260] == 'a' && block[261] == 'r') {
+            String prefix = parseString(block, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private static String parseString(byte[] block, int start, int length) {
+        int end = start;
+        while (end < start + length && block[end] != 0) {
+            end++;
+        }
+        return new String(block, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // octal, or base-256 when the high bit of the first byte is set
+    static long parseNumber(byte[] block, int start, int length, long blockOffset)
+            throws IOException {
+        if ((block[start] & 0x80) != 0) {
+            long value = block[start] & 0x7f;
+            for (int i = start + 1; i < start + length; i++) {
+                value = (value << 8) | (block[i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        int i = start;
+        int end = start + length;
+        while (i < end && (block[i] == ' ' || block[i] == 0)) {
+            i++;
+        }
+        for (; i < end && block[i] != ' ' && block[i] != 0; i++) {
+            int digit = block[i] - '0';
+            if (digit < 0 || digit > 7) {
+                throw new IOException("Invalid octal number in tar header at offset "
+                        + (blockOffset + start));
+            }
+            value = (value << 3) | digit;
+        }
+        return value;
+    }
+
+    static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // records are "<length> <key>=<value>\n"
+    static List<String[]> parsePax(byte[] bytes) throws IOException {
+        List<String[]> result = new ArrayList<>();
+        int pos = 0;
+        while (pos < bytes.length) {
+            int space = pos;
+            while (space < bytes.length && bytes[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(bytes, pos, space - pos,
+                        StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid pax header record", e);
+            }
+            if (length <= 0 || pos + length > bytes.length) {
+                throw new IOException("Invalid pax header record length: " + length);
+            }
+            String record = new String(bytes, space + 1, pos + length - space - 2,
+                    StandardCharsets.UTF_8);
+            int eq = record.indexOf('=');
+            if (eq > 0) {
+                result.add(new String[] { record.substring(0, eq), record.substring(eq + 1) });
+            }
+            pos += length;
+        }
+        return result;
+    }
+
+    private static String trimNul(String s) {
+        int nul = s.indexOf('\0');
+        return nul < 0 ? s : s.substring(0, nul);
+    }
+}
@@ -0,0 +1,132 @@
+package org.nick.abe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Writes a tar stream entry by entry: ustar headers, with a pax extended
+// header in front when the name, link name or size doesn't fit, which is
+// what Android does too. TarReader reads both.
+class TarWriter {
+
+    private static final int BLOCK_SIZE = TarReader.BLOCK_SIZE;
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+    private static final String PAX_HEADER_NAME = "././@PaxHeader";
+
+    private final OutputStream out;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private final byte[] padding = new byte[BLOCK_SIZE];
+    // of the current entry
+    private long remaining;
+    private long size;
+
+    TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    // starts an entry, its size bytes of data are to be written next
+    void putEntry(String name, char type, long size, int mode, long modTime,
+            String linkName) throws IOException {
+        if (remaining != 0) {
+            throw new IllegalStateException(remaining + " bytes missing from tar entry");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] linkBytes = linkName == null ? new byte[0]
+                : linkName.getBytes(StandardCharsets.UTF_8);
+        StringBuilder pax = new StringBuilder();
+        if (nameBytes.length > 100) {
+            appendPaxRecord(pax, "path", name);
+        }
+        if (linkBytes.length > 100) {
+            appendPaxRecord(pax, "linkpath", linkName);
+        }
+        if (size > MAX_USTAR_SIZE) {
+            appendPaxRecord(pax, "size", Long.toString(size));
+        }
+        if (pax.length() > 0) {
+            byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+            writeHeader(PAX_HEADER_NAME.getBytes(StandardCharsets.US_ASCII), 'x',
+                    records.length, 0644, modTime, new byte[0]);
+            out.write(records);
+            pad(records.length);
+        }
+        writeHeader(nameBytes, type, size, mode, modTime, linkBytes);
+        this.remaining = size;
+        this.size = size;
+    }
+
+    // data of the current entry
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len > remaining) {
+            throw new IllegalStateException("More data than the size of the tar entry");
+        }
+        out.write(b, off, len);
+        remaining -= len;
+        if (remaining == 0) {
+            pad(size);
+        }
+    }
+
+    // the end-of-archive marker, out stays open
+    void finish() throws IOException {
+        if (remaining != 0) {
+            throw new IllegalStateException(remaining + " bytes missing from tar entry");
+        }
+        out.write(padding);
+        out.write(padding);
+    }
+
+    private void writeHeader(byte[] name, char type, long size, int mode, long modTime,
+            byte[] linkName) throws IOException {
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        putOctal(100, 8, mode & 07777);
+        putOctal(108, 8, 0);
+        putOctal(116, 8, 0);
+        putOctal(124, 12, Math.min(size, MAX_USTAR_SIZE));
+        putOctal(136, 12, Math.max(0, modTime));
+        header[156] = (byte) type;
+        System.arraycopy(linkName, 0, header, 157, Math.min(linkName.length, 100));
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putOctal(148, 7, checksum);
+        out.write(header);
+    }
+
+    // zero padded, NUL terminated
+    private void putOctal(int start, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int j = octal.length() - digits + i;
+            header[start + i] = (byte) (j < 0 ? '0' : octal.charAt(j));
+        }
+        header[start + digits] = 0;
+    }
+
+    private void pad(long length) throws IOException {
+        int n = (int) (TarReader.padded(length) - length);
+        if (n > 0) {
+            out.write(padding, 0, n);
+        }
+    }
+
+    // "<length> <key>=<value>\n", the length counting its own digits
+    private static void appendPaxRecord(StringBuilder pax, String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int digits = Integer.toString(length).length();
+        if (Integer.toString(length + digits).length() > digits) {
+            digits++;
+        }
+        pax.append(length + digits).append(' ').append(key).append('=').append(value)
+                .append('\n');
+    }
+}
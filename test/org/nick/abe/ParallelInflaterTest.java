@@ -0,0 +1,106 @@
+package org.nick.abe;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ParallelInflaterTest {
+
+    // random data, which keeps the stream long enough for several chunks,
+    // each followed by zeros, which inflate to far more than their input
+    private static final int PARTS = 16;
+    private static final int RANDOM_LENGTH = 1024 * 1024;
+    private static final int ZEROS_LENGTH = 4 * 1024 * 1024;
+
+    private static byte[] compressed;
+    private static long length;
+    private static long crc;
+
+    @BeforeClass
+    public static void compress() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CRC32 check = new CRC32();
+        Random random = new Random(1);
+        byte[] data = new byte[RANDOM_LENGTH];
+        byte[] zeros = new byte[ZEROS_LENGTH];
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes,
+                new Deflater(Deflater.BEST_SPEED))) {
+            for (int i = 0; i < PARTS; i++) {
+                random.nextBytes(data);
+                out.write(data);
+                check.update(data);
+                out.write(zeros);
+                check.update(zeros);
+            }
+        }
+        compressed = bytes.toByteArray();
+        length = (long) PARTS * (RANDOM_LENGTH + ZEROS_LENGTH);
+        crc = check.getValue();
+    }
+
+    @AfterClass
+    public static void release() {
+        compressed = null;
+    }
+
+    @Test
+    public void inflatesWithLargeBudget() throws IOException {
+        inflate(256 * 1024 * 1024);
+    }
+
+    // the chunks in flight run out of budget, the rest is inflated serially
+    @Test
+    public void inflatesUnderSmallBudget() throws IOException {
+        inflate(4 * 1024 * 1024);
+    }
+
+    @Test
+    public void inflatesWithoutBudget() throws IOException {
+        inflate(0);
+    }
+
+    private void inflate(int budget) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            CheckedOutputStream out = new CheckedOutputStream();
+            long written = ParallelInflater.inflate(new ByteArrayInputStream(compressed), out,
+                    pool, 2, budget);
+            assertEquals(length, written);
+            assertEquals(length, out.length);
+            assertEquals(crc, out.crc.getValue());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static class CheckedOutputStream extends OutputStream {
+
+        final CRC32 crc = new CRC32();
+        long length;
+
+        @Override
+        public void write(int b) {
+            crc.update(b);
+            length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            crc.update(b, off, len);
+            length += len;
+        }
+    }
+}